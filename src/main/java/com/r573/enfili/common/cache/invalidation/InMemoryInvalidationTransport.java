@@ -0,0 +1,65 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.invalidation;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Transport connecting buses in the same JVM, for tests. Messages are delivered synchronously
+ * to every transport of the same Group, on the publishing thread.
+ * 
+ * @author ryanho
+ *
+ */
+public class InMemoryInvalidationTransport implements InvalidationTransport {
+	private final Group group;
+	private volatile InvalidationListener listener;
+	
+	public InMemoryInvalidationTransport(Group group) {
+		this.group = group;
+	}
+	
+	@Override
+	public void open(InvalidationListener listener) {
+		this.listener = listener;
+		group.members.add(this);
+	}
+	
+	@Override
+	public void publish(InvalidationMessage message) {
+		for(InMemoryInvalidationTransport member : group.members){
+			InvalidationListener memberListener = member.listener;
+			if(memberListener != null){
+				memberListener.onInvalidation(message);
+			}
+		}
+	}
+	
+	@Override
+	public void close() {
+		group.members.remove(this);
+		listener = null;
+	}
+	
+	/**
+	 * The set of transports that receive each other's messages
+	 */
+	public static class Group {
+		private final CopyOnWriteArrayList<InMemoryInvalidationTransport> members = new CopyOnWriteArrayList<InMemoryInvalidationTransport>();
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.invalidation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.r573.enfili.common.cache.simple.SimpleInMemoryCache;
+
+/**
+ * Keeps the caches of several nodes consistent. When a node changes data, it calls invalidate
+ * with the name of the cache and the key, for example after MorphiaDbManager.update:
+ * 
+ *   bus.invalidate("employees", employee.getId());
+ * 
+ * The key is removed from the local cache at once, and from the cache of the same name on
+ * every other node subscribed to the bus.
+ * 
+ * Invalidations are not published one by one. They are collected for up to the batch interval
+ * and sent as one message, and repeated invalidations of the same key, or of keys of a cache
+ * that is being cleared, are coalesced, so a burst of writes costs a handful of messages.
+ * A batch is sent early once it holds the maximum batch size of keys.
+ * 
+ * @author ryanho
+ *
+ */
+public class InvalidationBus implements InvalidationListener {
+	private static Logger log = LoggerFactory.getLogger(InvalidationBus.class);
+	private static final long DEFAULT_BATCH_INTERVAL = 50L;
+	private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+	private static final long STOP_TIMEOUT = 5000L; // how long stop waits for a batch being published
+	
+	private final String nodeId;
+	private final InvalidationTransport transport;
+	private final ConcurrentHashMap<String,SimpleInMemoryCache<?>> caches;
+	private long batchInterval;
+	private int maxBatchSize;
+	private ScheduledExecutorService flusher;
+	
+	// the batch being collected, guarded by batchLock
+	private final Object batchLock = new Object();
+	private Map<String,Set<String>> pendingKeys;
+	private Set<String> pendingClears;
+	private int pendingCount;
+	
+	private LongAdder numInvalidations;
+	private LongAdder numMessagesPublished;
+	private LongAdder numMessagesReceived;
+	private LongAdder numPublishFailures;
+	
+	public InvalidationBus(InvalidationTransport transport) {
+		this(UUID.randomUUID().toString(), transport);
+	}
+	
+	public InvalidationBus(String nodeId, InvalidationTransport transport) {
+		this.nodeId = nodeId;
+		this.transport = transport;
+		caches = new ConcurrentHashMap<String, SimpleInMemoryCache<?>>();
+		batchInterval = DEFAULT_BATCH_INTERVAL;
+		maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+		pendingKeys = new HashMap<String, Set<String>>();
+		pendingClears = new HashSet<String>();
+		pendingCount = 0;
+		numInvalidations = new LongAdder();
+		numMessagesPublished = new LongAdder();
+		numMessagesReceived = new LongAdder();
+		numPublishFailures = new LongAdder();
+	}
+	
+	public synchronized void start() throws IOException {
+		if(flusher != null){
+			log.warn("InvalidationBus " + nodeId + " already started");
+			return;
+		}
+		transport.open(this);
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "enfili-invalidation-flush");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, batchInterval, batchInterval, TimeUnit.MILLISECONDS);
+		log.info("InvalidationBus " + nodeId + " started");
+	}
+	
+	/**
+	 * Publishes the invalidations still pending, then disconnects from the other nodes
+	 */
+	public synchronized void stop() {
+		if(flusher != null){
+			flusher.shutdown();
+			try {
+				// let a flush in progress finish before the transport is closed under it
+				if(!flusher.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)){
+					log.warn("InvalidationBus " + nodeId + " timed out waiting for the last batch to be published");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+		flush();
+		transport.close();
+		log.info("InvalidationBus " + nodeId + " stopped");
+	}
+	
+	/**
+	 * Applies the invalidations received from other nodes to the cache. Caches are matched
+	 * across nodes by name.
+	 */
+	public void subscribe(SimpleInMemoryCache<?> cache) {
+		caches.put(cache.getName(), cache);
+	}
+	
+	public void unsubscribe(SimpleInMemoryCache<?> cache) {
+		caches.remove(cache.getName(), cache);
+	}
+	
+	/**
+	 * Removes the key from the named cache on this node and on every other node
+	 */
+	public void invalidate(String cacheName, String key) {
+		numInvalidations.increment();
+		SimpleInMemoryCache<?> cache = caches.get(cacheName);
+		if(cache != null){
+			cache.invalidate(key);
+		}
+		boolean batchFull = false;
+		synchronized (batchLock) {
+			if(!pendingClears.contains(cacheName)){
+				Set<String> keys = pendingKeys.get(cacheName);
+				if(keys == null){
+					keys = new HashSet<String>();
+					pendingKeys.put(cacheName, keys);
+				}
+				if(keys.add(key)){
+					pendingCount++;
+					batchFull = (pendingCount >= maxBatchSize);
+				}
+			}
+		}
+		if(batchFull){
+			flush();
+		}
+	}
+	
+	/**
+	 * Clears the named cache on this node and on every other node
+	 */
+	public void invalidateAll(String cacheName) {
+		numInvalidations.increment();
+		SimpleInMemoryCache<?> cache = caches.get(cacheName);
+		if(cache != null){
+			cache.invalidateAll();
+		}
+		synchronized (batchLock) {
+			Set<String> keys = pendingKeys.remove(cacheName);
+			if(keys != null){
+				pendingCount -= keys.size();
+			}
+			pendingClears.add(cacheName);
+		}
+	}
+	
+	/**
+	 * Publishes the pending invalidations now instead of waiting for the batch interval
+	 */
+	public void flush() {
+		InvalidationMessage message;
+		synchronized (batchLock) {
+			if(pendingKeys.isEmpty() && pendingClears.isEmpty()){
+				return;
+			}
+			Map<String,List<String>> keys = new HashMap<String, List<String>>();
+			for(Map.Entry<String,Set<String>> entry : pendingKeys.entrySet()){
+				keys.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+			}
+			message = new InvalidationMessage(nodeId, keys, new ArrayList<String>(pendingClears));
+			pendingKeys = new HashMap<String, Set<String>>();
+			pendingClears = new HashSet<String>();
+			pendingCount = 0;
+		}
+		try {
+			transport.publish(message);
+			numMessagesPublished.increment();
+		}
+		catch (IOException e) {
+			// the other nodes will serve the stale entries until they expire
+			numPublishFailures.increment();
+			log.error("InvalidationBus " + nodeId + " failed to publish invalidations", e);
+		}
+		catch (RuntimeException e) {
+			numPublishFailures.increment();
+			log.error("InvalidationBus " + nodeId + " failed to publish invalidations", e);
+		}
+	}
+	
+	@Override
+	public void onInvalidation(InvalidationMessage message) {
+		if(nodeId.equals(message.getNodeId())){
+			// already applied locally when it was published
+			return;
+		}
+		numMessagesReceived.increment();
+		for(String cacheName : message.getClearedCaches()){
+			SimpleInMemoryCache<?> cache = caches.get(cacheName);
+			if(cache != null){
+				cache.invalidateAll();
+			}
+		}
+		for(Map.Entry<String,List<String>> entry : message.getKeys().entrySet()){
+			SimpleInMemoryCache<?> cache = caches.get(entry.getKey());
+			if(cache != null){
+				cache.invalidateAll(entry.getValue());
+			}
+		}
+	}
+	
+	public String getNodeId() {
+		return nodeId;
+	}
+	
+	public long getBatchInterval() {
+		return batchInterval;
+	}
+	
+	/**
+	 * How long, in ms, invalidations are collected before being published. Must be set before start.
+	 */
+	public void setBatchInterval(long batchInterval) {
+		this.batchInterval = batchInterval;
+	}
+	
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+	
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	public long getNumInvalidations() {
+		return numInvalidations.sum();
+	}
+	
+	public long getNumMessagesPublished() {
+		return numMessagesPublished.sum();
+	}
+	
+	public long getNumMessagesReceived() {
+		return numMessagesReceived.sum();
+	}
+	
+	public long getNumPublishFailures() {
+		return numPublishFailures.sum();
+	}
+}
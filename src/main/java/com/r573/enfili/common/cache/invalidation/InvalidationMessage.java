@@ -0,0 +1,66 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.invalidation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of invalidations published by one node: the keys to remove from each cache, by
+ * cache name, and the caches to clear completely
+ * 
+ * @author ryanho
+ *
+ */
+public class InvalidationMessage {
+	private String nodeId;
+	private Map<String,List<String>> keys;
+	private List<String> clearedCaches;
+	
+	public InvalidationMessage() {
+		keys = new HashMap<String, List<String>>();
+		clearedCaches = new ArrayList<String>();
+	}
+	
+	public InvalidationMessage(String nodeId, Map<String,List<String>> keys, List<String> clearedCaches) {
+		this.nodeId = nodeId;
+		this.keys = keys;
+		this.clearedCaches = clearedCaches;
+	}
+	
+	public String getNodeId() {
+		return nodeId;
+	}
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+	public Map<String, List<String>> getKeys() {
+		return keys;
+	}
+	public void setKeys(Map<String, List<String>> keys) {
+		this.keys = keys;
+	}
+	public List<String> getClearedCaches() {
+		return clearedCaches;
+	}
+	public void setClearedCaches(List<String> clearedCaches) {
+		this.clearedCaches = clearedCaches;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.invalidation;
+
+import java.io.IOException;
+
+/**
+ * Carries invalidation messages between the nodes sharing an InvalidationBus. Messages
+ * published by a node may be delivered back to that node; the bus ignores them.
+ * 
+ * @author ryanho
+ *
+ */
+public interface InvalidationTransport {
+	/**
+	 * Starts delivering the messages published by every node to the listener
+	 */
+	public void open(InvalidationListener listener) throws IOException;
+	
+	public void publish(InvalidationMessage message) throws IOException;
+	
+	public void close();
+}
@@ -0,0 +1,239 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.invalidation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Transport writing each message to a capped collection, which every node follows with a
+ * tailable cursor. Useful where multicast is not available, since the nodes already share the
+ * database.
+ * 
+ * The collection is created on open if it does not exist. Being capped, it never grows past
+ * its size and needs no cleanup. A node only receives the messages written after it opened.
+ * 
+ * Messages are followed in insertion ($natural) order, never by _id: the ids are generated by
+ * the publishing nodes, whose clocks and counters do not agree, so a message can be inserted
+ * after one with a greater id. When the cursor has to be reopened, the tailer reads from the
+ * start of the collection again and skips up to the last message it received. If that message
+ * has already been overwritten, every message still in the collection is applied again, since
+ * applying an invalidation twice is harmless but missing one is not.
+ * 
+ * @author ryanho
+ *
+ */
+public class MongoInvalidationTransport implements InvalidationTransport {
+	private static Logger log = LoggerFactory.getLogger(MongoInvalidationTransport.class);
+	public static final String DEFAULT_COLLECTION_NAME = "cacheInvalidations";
+	private static final long DEFAULT_COLLECTION_SIZE = 1024L * 1024L;
+	private static final long RETRY_INTERVAL = 1000L;
+	
+	private final DB db;
+	private final String collectionName;
+	private long collectionSize;
+	private volatile DBCollection collection;
+	private volatile DBCursor cursor;
+	private volatile boolean closed;
+	
+	public MongoInvalidationTransport(DB db) {
+		this(db, DEFAULT_COLLECTION_NAME);
+	}
+	
+	public MongoInvalidationTransport(DB db, String collectionName) {
+		this.db = db;
+		this.collectionName = collectionName;
+		this.collectionSize = DEFAULT_COLLECTION_SIZE;
+	}
+	
+	@Override
+	public synchronized void open(final InvalidationListener listener) {
+		if(collection != null){
+			throw new IllegalStateException("MongoInvalidationTransport already open");
+		}
+		closed = false;
+		if(!db.collectionExists(collectionName)){
+			try {
+				db.createCollection(collectionName, new BasicDBObject("capped", true).append("size", collectionSize));
+			}
+			catch (MongoException e) {
+				// another node created it first
+				log.debug("Could not create invalidation collection " + collectionName, e);
+			}
+		}
+		collection = db.getCollection(collectionName);
+		// the last message written before opening, or null if there is none
+		DBCursor last = collection.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+		final Object openedAfter;
+		try {
+			openedAfter = last.hasNext() ? last.next().get("_id") : null;
+		}
+		finally {
+			last.close();
+		}
+		Thread tailer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tail(openedAfter, listener);
+			}
+		}, "enfili-invalidation-mongo");
+		tailer.setDaemon(true);
+		tailer.start();
+	}
+	
+	/**
+	 * @param lastId the id of the last message received, or null to receive every message in the collection
+	 */
+	private void tail(Object lastId, InvalidationListener listener){
+		while(!closed){
+			try {
+				// if the last message was overwritten, everything left in the collection is newer
+				boolean skipping = (lastId != null) && (collection.findOne(new BasicDBObject("_id", lastId)) != null);
+				DBCursor tailCursor = collection.find()
+						.sort(new BasicDBObject("$natural", 1))
+						.addOption(Bytes.QUERYOPTION_TAILABLE)
+						.addOption(Bytes.QUERYOPTION_AWAITDATA);
+				cursor = tailCursor;
+				try {
+					while(!closed && tailCursor.hasNext()){
+						DBObject document = tailCursor.next();
+						Object id = document.get("_id");
+						if(skipping){
+							// overwriting it would have killed the cursor first, so the tailer does not skip forever
+							skipping = !id.equals(lastId);
+							continue;
+						}
+						lastId = id;
+						try {
+							listener.onInvalidation(fromDocument(document));
+						}
+						catch (RuntimeException e) {
+							log.error("Error applying invalidation message", e);
+						}
+					}
+				}
+				finally {
+					tailCursor.close();
+				}
+				// an empty capped collection ends the tailable cursor immediately, so do not spin
+				if(!closed){
+					Thread.sleep(RETRY_INTERVAL);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (RuntimeException e) {
+				if(closed){
+					return;
+				}
+				log.error("Error tailing invalidation collection " + collectionName + ", retrying", e);
+				try {
+					Thread.sleep(RETRY_INTERVAL);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void publish(InvalidationMessage message) {
+		DBCollection publishCollection = collection;
+		if(publishCollection == null){
+			throw new IllegalStateException("MongoInvalidationTransport is not open");
+		}
+		publishCollection.insert(toDocument(message));
+	}
+	
+	@Override
+	public synchronized void close() {
+		closed = true;
+		DBCursor tailCursor = cursor;
+		if(tailCursor != null){
+			tailCursor.close();
+			cursor = null;
+		}
+		collection = null;
+	}
+	
+	/**
+	 * Cache names are stored as values rather than field names, since they may contain dots
+	 */
+	private static DBObject toDocument(InvalidationMessage message){
+		BasicDBList keys = new BasicDBList();
+		for(Map.Entry<String,List<String>> entry : message.getKeys().entrySet()){
+			BasicDBList cacheKeys = new BasicDBList();
+			cacheKeys.addAll(entry.getValue());
+			keys.add(new BasicDBObject("cache", entry.getKey()).append("keys", cacheKeys));
+		}
+		BasicDBList clearedCaches = new BasicDBList();
+		clearedCaches.addAll(message.getClearedCaches());
+		return new BasicDBObject("_id", new ObjectId())
+				.append("node", message.getNodeId())
+				.append("keys", keys)
+				.append("cleared", clearedCaches);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static InvalidationMessage fromDocument(DBObject document){
+		Map<String,List<String>> keys = new HashMap<String, List<String>>();
+		for(Object obj : (List<Object>) document.get("keys")){
+			DBObject cacheKeys = (DBObject) obj;
+			List<String> keyList = new ArrayList<String>();
+			for(Object key : (List<Object>) cacheKeys.get("keys")){
+				keyList.add((String) key);
+			}
+			keys.put((String) cacheKeys.get("cache"), keyList);
+		}
+		List<String> clearedCaches = new ArrayList<String>();
+		for(Object cacheName : (List<Object>) document.get("cleared")){
+			clearedCaches.add((String) cacheName);
+		}
+		return new InvalidationMessage((String) document.get("node"), keys, clearedCaches);
+	}
+	
+	public long getCollectionSize() {
+		return collectionSize;
+	}
+	
+	/**
+	 * Size in bytes of the capped collection, if it has to be created. Must be set before open.
+	 */
+	public void setCollectionSize(long collectionSize) {
+		this.collectionSize = collectionSize;
+	}
+}
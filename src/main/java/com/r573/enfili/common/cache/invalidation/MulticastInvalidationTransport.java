@@ -0,0 +1,154 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.invalidation;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.r573.enfili.common.doc.json.JsonHelper;
+import com.r573.enfili.common.doc.json.JsonProcessingException;
+
+/**
+ * Transport sending each message as one JSON datagram to a UDP multicast group. Every node
+ * on the network joined to the same group and port receives it.
+ * 
+ * Delivery is best effort, as with any UDP. A message too large for one datagram is sent as
+ * a message clearing every cache it mentions, which is coarser but never leaves a node stale.
+ * 
+ * @author ryanho
+ *
+ */
+public class MulticastInvalidationTransport implements InvalidationTransport {
+	private static Logger log = LoggerFactory.getLogger(MulticastInvalidationTransport.class);
+	private static final int MAX_DATAGRAM_SIZE = 60000;
+	private static final int DEFAULT_TIME_TO_LIVE = 1; // stay on the local network segment
+	
+	private final InetAddress groupAddress;
+	private final int port;
+	private int timeToLive;
+	private volatile MulticastSocket socket;
+	private volatile boolean closed;
+	
+	public MulticastInvalidationTransport(InetAddress groupAddress, int port) {
+		if(!groupAddress.isMulticastAddress()){
+			throw new IllegalArgumentException(groupAddress + " is not a multicast address");
+		}
+		this.groupAddress = groupAddress;
+		this.port = port;
+		this.timeToLive = DEFAULT_TIME_TO_LIVE;
+	}
+	
+	@Override
+	public synchronized void open(final InvalidationListener listener) throws IOException {
+		if(socket != null){
+			throw new IllegalStateException("MulticastInvalidationTransport already open");
+		}
+		closed = false;
+		socket = new MulticastSocket(port);
+		socket.setTimeToLive(timeToLive);
+		socket.joinGroup(new InetSocketAddress(groupAddress, port), null);
+		final MulticastSocket receiveSocket = socket;
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive(receiveSocket, listener);
+			}
+		}, "enfili-invalidation-multicast");
+		receiver.setDaemon(true);
+		receiver.start();
+		log.info("Joined invalidation group " + groupAddress.getHostAddress() + ":" + port);
+	}
+	
+	private void receive(MulticastSocket receiveSocket, InvalidationListener listener){
+		byte[] buffer = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while(!closed){
+			try {
+				packet.setLength(buffer.length);
+				receiveSocket.receive(packet);
+				listener.onInvalidation(JsonHelper.fromJson(packet.getData(), packet.getOffset(), packet.getLength(), InvalidationMessage.class));
+			}
+			catch (JsonProcessingException e) {
+				log.warn("Ignoring malformed invalidation datagram from " + packet.getAddress(), e);
+			}
+			catch (IOException e) {
+				if(!closed){
+					log.error("Error receiving invalidation datagram", e);
+				}
+			}
+			catch (RuntimeException e) {
+				log.error("Error applying invalidation message", e);
+			}
+		}
+	}
+	
+	@Override
+	public void publish(InvalidationMessage message) throws IOException {
+		MulticastSocket sendSocket = socket;
+		if(sendSocket == null){
+			throw new IllegalStateException("MulticastInvalidationTransport is not open");
+		}
+		byte[] data = JsonHelper.toJsonBytes(message);
+		if(data.length > MAX_DATAGRAM_SIZE){
+			List<String> clearedCaches = new ArrayList<String>(message.getClearedCaches());
+			for(String cacheName : message.getKeys().keySet()){
+				if(!clearedCaches.contains(cacheName)){
+					clearedCaches.add(cacheName);
+				}
+			}
+			InvalidationMessage clearMessage = new InvalidationMessage(message.getNodeId(), new HashMap<String, List<String>>(), clearedCaches);
+			data = JsonHelper.toJsonBytes(clearMessage);
+		}
+		sendSocket.send(new DatagramPacket(data, data.length, groupAddress, port));
+	}
+	
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if(socket != null){
+			try {
+				socket.leaveGroup(new InetSocketAddress(groupAddress, port), null);
+			}
+			catch (IOException e) {
+				log.warn("Error leaving invalidation group " + groupAddress.getHostAddress(), e);
+			}
+			socket.close();
+			socket = null;
+		}
+	}
+	
+	public int getTimeToLive() {
+		return timeToLive;
+	}
+	
+	/**
+	 * Number of router hops the datagrams may cross. Must be set before open.
+	 */
+	public void setTimeToLive(int timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+}
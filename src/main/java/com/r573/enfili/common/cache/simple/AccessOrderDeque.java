@@ -0,0 +1,71 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+/**
+ * Intrusive doubly-linked list of cache items, ordered from least to most recently used. The
+ * links live on the CacheItem itself so that moving an item does not allocate.
+ * 
+ * Not thread safe. Guarded by the owning cache's eviction lock.
+ */
+class AccessOrderDeque<T> {
+	private CacheItem<T> first;
+	private CacheItem<T> last;
+	
+	CacheItem<T> peekFirst(){
+		return first;
+	}
+	
+	void addLast(CacheItem<T> item){
+		item.prevInAccessOrder = last;
+		item.nextInAccessOrder = null;
+		if(last == null){
+			first = item;
+		}
+		else{
+			last.nextInAccessOrder = item;
+		}
+		last = item;
+	}
+	
+	void remove(CacheItem<T> item){
+		CacheItem<T> prev = item.prevInAccessOrder;
+		CacheItem<T> next = item.nextInAccessOrder;
+		if(prev == null){
+			first = next;
+		}
+		else{
+			prev.nextInAccessOrder = next;
+		}
+		if(next == null){
+			last = prev;
+		}
+		else{
+			next.prevInAccessOrder = prev;
+		}
+		item.prevInAccessOrder = null;
+		item.nextInAccessOrder = null;
+	}
+	
+	void moveToBack(CacheItem<T> item){
+		if(item != last){
+			remove(item);
+			addLast(item);
+		}
+	}
+}
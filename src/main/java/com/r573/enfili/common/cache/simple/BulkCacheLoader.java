@@ -0,0 +1,36 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Computes the values for a batch of keys that are missing from a cache, e.g. with a single
+ * database query.
+ * 
+ * @author ryanho
+ *
+ */
+public interface BulkCacheLoader<T> {
+	/**
+	 * @return the values found. Keys without a value can be left out of the map. Entries for
+	 * keys that were not requested are cached as well.
+	 */
+	public Map<String, T> loadAll(Collection<String> keys) throws Exception;
+}
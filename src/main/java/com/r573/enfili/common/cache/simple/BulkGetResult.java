@@ -0,0 +1,50 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a bulk cache lookup: the values that were found, and the keys that were not so that
+ * they can be loaded in one batch
+ * 
+ * @author ryanho
+ *
+ */
+public class BulkGetResult<T> {
+	private Map<String,T> hits;
+	private List<String> missingKeys;
+	
+	public BulkGetResult(Map<String,T> hits, List<String> missingKeys) {
+		this.hits = hits;
+		this.missingKeys = missingKeys;
+	}
+	
+	public Map<String,T> getHits() {
+		return hits;
+	}
+	
+	public List<String> getMissingKeys() {
+		return missingKeys;
+	}
+	
+	public boolean isComplete() {
+		return missingKeys.isEmpty();
+	}
+}
@@ -18,16 +18,45 @@
 package com.r573.enfili.common.cache.simple;
 
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Cache entry. Expiry is tracked against System.nanoTime() so that checking it is a single
+ * primitive comparison and does not allocate.
+ * 
+ * The cached value and its write and expiry times are final. The package-private fields are
+ * not: key, graceNanos and weight are set by the owning cache before the item is put in its
+ * map, and after that weight, queueType and the access-order and timer links may only change
+ * while holding the owning cache's eviction lock.
+ */
 public class CacheItem<T> {
-	private T cachedObject;
-	private Date timestamp;
-	private Date expiry;
+	// caps lifespans so that nanoTime arithmetic cannot overflow (~146 years)
+	private static final long MAX_LIFESPAN_NANOS = Long.MAX_VALUE >> 1;
+
+	private final T cachedObject;
+	private final long timestamp;
+	private final long expiry;
+	private final long writeNanos;
+	private final long expiryNanos;
+	
+	// set by the owning cache before the item is published
+	String key;
+	long graceNanos;
+	
+	// eviction policy bookkeeping, guarded by the owning cache's eviction lock
+	int weight;
+	byte queueType;
+	CacheItem<T> prevInAccessOrder;
+	CacheItem<T> nextInAccessOrder;
+	CacheItem<T> prevInTimer;
+	CacheItem<T> nextInTimer;
 	
 	public CacheItem(T obj, long lifespan){
 		cachedObject = obj;
-		timestamp = new Date();
-		expiry = new Date(timestamp.getTime() + lifespan);
+		timestamp = System.currentTimeMillis();
+		writeNanos = System.nanoTime();
+		expiry = timestamp + lifespan;
+		expiryNanos = writeNanos + toLifespanNanos(lifespan);
 	}
 	
 	/**
@@ -38,18 +67,56 @@ public class CacheItem<T> {
 	 */
 	public CacheItem(T obj, Date expiry){
 		cachedObject = obj;
-		timestamp = new Date();
+		timestamp = System.currentTimeMillis();
+		writeNanos = System.nanoTime();
+		this.expiry = expiry.getTime();
+		expiryNanos = writeNanos + toLifespanNanos(this.expiry - timestamp);
+	}
+
+	/**
+	 * Recreates an item with its original write and expiry times, e.g. when it is promoted back
+	 * from another cache tier
+	 */
+	CacheItem(T obj, long timestamp, long expiry, long writeNanos, long expiryNanos){
+		cachedObject = obj;
+		this.timestamp = timestamp;
 		this.expiry = expiry;
+		this.writeNanos = writeNanos;
+		this.expiryNanos = expiryNanos;
 	}
 
-	public boolean hasExpired(){
-		Date now = new Date();
-		if(now.after(expiry)){
-			return true;
-		}
-		else{
-			return false;
+	/**
+	 * Recreates an item from wall clock times, e.g. when it is restored from a snapshot written
+	 * by another process
+	 */
+	static <T> CacheItem<T> fromWallClock(T obj, long timestamp, long expiry){
+		long nowMillis = System.currentTimeMillis();
+		long nowNanos = System.nanoTime();
+		long writeNanos = nowNanos - Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(nowMillis - timestamp, 0L)), MAX_LIFESPAN_NANOS);
+		long expiryNanos = nowNanos + toLifespanNanos(expiry - nowMillis);
+		return new CacheItem<T>(obj, timestamp, expiry, writeNanos, expiryNanos);
+	}
+
+	static long toLifespanNanos(long lifespan){
+		if(lifespan <= 0){
+			return 0;
 		}
+		return Math.min(TimeUnit.MILLISECONDS.toNanos(lifespan), MAX_LIFESPAN_NANOS);
+	}
+
+	public boolean hasExpired(){
+		return hasExpired(System.nanoTime());
+	}
+	
+	boolean hasExpired(long nowNanos){
+		return (nowNanos - expiryNanos) > 0;
+	}
+	
+	/**
+	 * @return true if the item has expired and can no longer be served even as a stale value
+	 */
+	boolean isPastGracePeriod(long nowNanos){
+		return (nowNanos - getTimerNanos()) > 0;
 	}
 	
 	public T getCachedObject() {
@@ -57,10 +124,33 @@ public class CacheItem<T> {
 	}
 
 	public Date getTimestamp() {
-		return timestamp;
+		return new Date(timestamp);
 	}
 
 	public Date getExpiry() {
+		return new Date(expiry);
+	}
+
+	long getTimestampMillis() {
+		return timestamp;
+	}
+	
+	long getExpiryMillis() {
 		return expiry;
 	}
+
+	long getWriteNanos() {
+		return writeNanos;
+	}
+
+	long getExpiryNanos() {
+		return expiryNanos;
+	}
+	
+	/**
+	 * @return the time at which the timer wheel should remove this item
+	 */
+	long getTimerNanos() {
+		return expiryNanos + graceNanos;
+	}
 }
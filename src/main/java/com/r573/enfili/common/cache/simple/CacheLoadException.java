@@ -0,0 +1,30 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+/**
+ * Thrown when a CacheLoader or BulkCacheLoader fails with a checked exception, or when a thread
+ * is interrupted while waiting for another thread's load.
+ */
+public class CacheLoadException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public CacheLoadException(String message, Throwable cause){
+		super(message, cause);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single daemon thread shared by all cache instances for their periodic maintenance, so that
+ * starting a cache does not cost a dedicated thread. Maintenance tasks are short since each
+ * only expires the entries that are due.
+ * 
+ * Also holds the default executor for background refreshes, shared by all caches that do not
+ * configure their own.
+ */
+class CacheScheduler {
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "enfili-cache-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final ExecutorService refreshExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger threadNum = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "enfili-cache-refresh-" + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	static ScheduledFuture<?> scheduleMaintenance(Runnable task, long intervalMillis){
+		return scheduler.scheduleWithFixedDelay(task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	static Executor defaultRefreshExecutor(){
+		return refreshExecutor;
+	}
+}
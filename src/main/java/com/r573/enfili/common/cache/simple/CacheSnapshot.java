@@ -0,0 +1,210 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes cache snapshot files, used to warm a cache up again after a restart.
+ * 
+ * A snapshot is a header followed by append-only records of
+ * [key length][key UTF-8][timestamp][expiry][value length][value bytes], with times in
+ * milliseconds since the epoch so that they survive a restart. Both directions go through
+ * memory-mapped buffers, mapping the file a chunk at a time so that a snapshot can grow past
+ * the 2GB a single buffer can map. A snapshot is written to a temporary file and renamed into place when
+ * complete, and a truncated final record is ignored on reading.
+ */
+class CacheSnapshot {
+	private static final int MAGIC = 0x454e4643; // "ENFC"
+	private static final int VERSION = 1;
+	private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 4;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAP_CHUNK_SIZE = 1 << 24; // 16MB
+	
+	static class Writer {
+		private final File file;
+		private final File tempFile;
+		private final FileChannel channel;
+		private MappedByteBuffer buffer;
+		private long bufferStart;
+		private int numRecords;
+		
+		Writer(File file) throws IOException {
+			this.file = file;
+			this.tempFile = new File(file.getPath() + ".tmp");
+			channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			bufferStart = 0;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_CHUNK_SIZE);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			numRecords = 0;
+		}
+		
+		void append(String key, long timestamp, long expiry, byte[] value) throws IOException {
+			byte[] keyBytes = key.getBytes(UTF_8);
+			int recordSize = RECORD_OVERHEAD + keyBytes.length + value.length;
+			if(buffer.remaining() < recordSize){
+				bufferStart += buffer.position();
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferStart, Math.max(MAP_CHUNK_SIZE, recordSize));
+			}
+			buffer.putInt(keyBytes.length);
+			buffer.put(keyBytes);
+			buffer.putLong(timestamp);
+			buffer.putLong(expiry);
+			buffer.putInt(value.length);
+			buffer.put(value);
+			numRecords++;
+		}
+		
+		int getNumRecords(){
+			return numRecords;
+		}
+		
+		/**
+		 * Trims the file to the records written and moves it into place
+		 */
+		void commit() throws IOException {
+			long length = bufferStart + buffer.position();
+			buffer.force();
+			buffer = null;
+			channel.truncate(length);
+			channel.close();
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		
+		void abort(){
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// nothing more we can do, the temp file is deleted below
+			}
+			tempFile.delete();
+		}
+	}
+	
+	/**
+	 * Reads the record headers of a snapshot. Values are left in the mapped file until
+	 * Record.readValue is called, so they can be decoded in parallel.
+	 */
+	static List<Record> read(File file) throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			Window window = new Window(channel);
+			if(!window.ensure(8) || (window.buffer.getInt() != MAGIC) || (window.buffer.getInt() != VERSION)){
+				throw new IOException("File " + file + " is not a cache snapshot");
+			}
+			while(window.ensure(RECORD_OVERHEAD)){
+				int keyLength = window.buffer.getInt(window.buffer.position());
+				if((keyLength < 0) || (keyLength > Integer.MAX_VALUE - RECORD_OVERHEAD) || !window.ensure(keyLength + RECORD_OVERHEAD)){
+					break;
+				}
+				int valueLength = window.buffer.getInt(window.buffer.position() + keyLength + RECORD_OVERHEAD - 4);
+				long recordSize = (long) keyLength + RECORD_OVERHEAD + valueLength;
+				if((valueLength < 0) || (recordSize > Integer.MAX_VALUE) || !window.ensure((int) recordSize)){
+					break;
+				}
+				// the whole record is now in the window
+				MappedByteBuffer buffer = window.buffer;
+				buffer.getInt();
+				byte[] keyBytes = new byte[keyLength];
+				buffer.get(keyBytes);
+				long timestamp = buffer.getLong();
+				long expiry = buffer.getLong();
+				buffer.getInt();
+				records.add(new Record(new String(keyBytes, UTF_8), timestamp, expiry, buffer, buffer.position(), valueLength));
+				buffer.position(buffer.position() + valueLength);
+			}
+			return records;
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * The part of a snapshot file currently mapped for reading. It is mapped again from the
+	 * current position whenever the next read does not fit in it.
+	 */
+	private static class Window {
+		private final FileChannel channel;
+		private final long size;
+		private long start;
+		MappedByteBuffer buffer;
+		
+		Window(FileChannel channel) throws IOException {
+			this.channel = channel;
+			size = channel.size();
+			start = 0;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_CHUNK_SIZE));
+		}
+		
+		/**
+		 * @return false if fewer than length bytes are left in the file
+		 */
+		boolean ensure(int length) throws IOException {
+			if(buffer.remaining() >= length){
+				return true;
+			}
+			long position = start + buffer.position();
+			if(size - position < length){
+				return false;
+			}
+			start = position;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Math.max(MAP_CHUNK_SIZE, length)));
+			return true;
+		}
+	}
+	
+	static class Record {
+		final String key;
+		final long timestamp;
+		final long expiry;
+		private final ByteBuffer buffer;
+		private final int valueOffset;
+		private final int valueLength;
+		
+		Record(String key, long timestamp, long expiry, ByteBuffer buffer, int valueOffset, int valueLength){
+			this.key = key;
+			this.timestamp = timestamp;
+			this.expiry = expiry;
+			this.buffer = buffer;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+		}
+		
+		byte[] readValue(){
+			byte[] value = new byte[valueLength];
+			ByteBuffer view = buffer.duplicate();
+			view.position(valueOffset);
+			view.get(value);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+/**
+ * Count-Min sketch of the popularity of cache keys, used by the TinyLFU admission policy to
+ * decide whether a new entry is worth more than the entry it would displace.
+ * 
+ * Each counter is 4 bits (16 per long) and each key maps to 4 counters in a single long. When
+ * the number of increments reaches the sample size all counters are halved, so that the
+ * sketch keeps tracking recent popularity instead of all-time popularity.
+ * 
+ * Not thread safe. Guarded by the owning cache's eviction lock.
+ * 
+ * Adapted from the FrequencySketch of Caffeine (https://github.com/ben-manes/caffeine),
+ * Copyright Ben Manes, licensed under the Apache License, Version 2.0.
+ */
+class FrequencySketch {
+	private static final long[] SEED = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+	
+	private long[] table = new long[0];
+	private int tableMask;
+	private int sampleSize;
+	private int size;
+	
+	/**
+	 * Resizes the sketch so that it can track the given number of entries. Resizing discards
+	 * the counts gathered so far.
+	 */
+	void ensureCapacity(long maximumSize){
+		int maximum = (int) Math.min(Math.max(maximumSize, 8L), MAXIMUM_CAPACITY);
+		if(table.length >= maximum){
+			return;
+		}
+		table = new long[ceilingPowerOfTwo(maximum)];
+		tableMask = table.length - 1;
+		sampleSize = (maximum >= (Integer.MAX_VALUE / 10)) ? Integer.MAX_VALUE : (10 * maximum);
+		size = 0;
+	}
+	
+	int frequency(Object key){
+		if(table.length == 0){
+			return 0;
+		}
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for(int i=0; i<4; i++){
+			int index = indexOf(hash, i);
+			int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+	
+	void increment(Object key){
+		if(table.length == 0){
+			return;
+		}
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for(int i=0; i<4; i++){
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if(added && (++size == sampleSize)){
+			reset();
+		}
+	}
+	
+	private boolean incrementAt(int index, int counter){
+		int offset = counter << 2;
+		long mask = (0xfL << offset);
+		if((table[index] & mask) != mask){
+			table[index] += (1L << offset);
+			return true;
+		}
+		return false;
+	}
+	
+	private void reset(){
+		int count = 0;
+		for(int i=0; i<table.length; i++){
+			count += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size >>> 1) - (count >>> 2);
+	}
+	
+	private int indexOf(int hash, int i){
+		long h = (hash + SEED[i]) * SEED[i];
+		h += (h >>> 32);
+		return ((int) h) & tableMask;
+	}
+	
+	private static int spread(int x){
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+	
+	private static int ceilingPowerOfTwo(int x){
+		return 1 << -Integer.numberOfLeadingZeros(x - 1);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import com.r573.enfili.common.doc.json.JsonHelper;
+
+/**
+ * CacheCodec storing values as UTF-8 JSON through JsonHelper. Works for any value that
+ * JsonHelper can round trip.
+ * 
+ * @author ryanho
+ *
+ */
+public class JsonCacheCodec<T> implements CacheCodec<T> {
+	private Class<T> valueClass;
+	
+	public JsonCacheCodec(Class<T> valueClass) {
+		this.valueClass = valueClass;
+	}
+
+	@Override
+	public byte[] encode(T value) {
+		return JsonHelper.toJsonBytes(value);
+	}
+
+	@Override
+	public T decode(byte[] bytes) {
+		return JsonHelper.fromJson(bytes, valueClass);
+	}
+}
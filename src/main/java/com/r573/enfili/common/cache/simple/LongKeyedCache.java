@@ -0,0 +1,449 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory cache for entries keyed by numeric ids, so callers do not have to turn the id into
+ * a String for SimpleInMemoryCache.
+ * 
+ * Entries are held in open-addressing hash tables of parallel primitive arrays, with no
+ * wrapper object per entry and no boxed keys. The key space is split into segments, each
+ * guarded by a StampedLock. Reads first try an optimistic read and only take the read lock
+ * if a write to the same segment raced with them, so a hit allocates nothing and does not
+ * write to any shared memory apart from the striped statistics counters.
+ * 
+ * Expired entries are not returned by get, and are removed from the tables by a sweep run once
+ * every second once the cache is started. Each run only visits part of every segment, moving on
+ * from where the previous run stopped, so that a large segment is covered over several runs. The
+ * part is walked in short slices: a slice is first scanned without a lock and the write lock is
+ * only taken, for that one slice, if it holds an expired entry. Readers therefore never wait for
+ * more than a slice to be swept, and a slice with nothing to expire does not invalidate their
+ * optimistic reads.
+ * 
+ * Values cannot be null.
+ * 
+ * @author ryanho
+ *
+ */
+public class LongKeyedCache<T> implements Runnable {
+	private static Logger log = LoggerFactory.getLogger(LongKeyedCache.class);
+	private static final long MAINTENANCE_INTERVAL = 1000L; // sweep expired entries once every second
+	private static final long DEFAULT_LIFESPAN = 15L * 60000L; // Default lifespan of 15 minutes
+	private static final int SEGMENT_BITS = 4;
+	private static final int INITIAL_SEGMENT_CAPACITY = 16;
+	private static final int SWEEP_SLICE = 256; // slots swept under one acquisition of the write lock
+	private static final int MIN_SWEEP_SLOTS = 4096; // segments up to this capacity are swept whole on every run
+	private static final int SWEEP_RUNS_PER_PASS = 16; // larger segments are swept whole over this many runs
+	
+	private String name;
+	private ScheduledFuture<?> maintenanceTask;
+	private final Segment[] segments;
+	private volatile long defaultLifespan;
+	private volatile boolean started;
+	private LongAdder numGetRequests;
+	private LongAdder numCacheHits;
+	private LongAdder numCacheMisses;
+	private LongAdder numExpirations;
+	
+	public LongKeyedCache(String name){
+		this.name = name;
+		segments = new Segment[1 << SEGMENT_BITS];
+		for(int i=0; i<segments.length; i++){
+			segments[i] = new Segment();
+		}
+		defaultLifespan = DEFAULT_LIFESPAN;
+		started = false;
+		numGetRequests = new LongAdder();
+		numCacheHits = new LongAdder();
+		numCacheMisses = new LongAdder();
+		numExpirations = new LongAdder();
+	}
+	
+	public synchronized void start(){
+		if(maintenanceTask != null){
+			log.warn("LongKeyedCache "+name+" already started");
+			return;
+		}
+		maintenanceTask = CacheScheduler.scheduleMaintenance(this, MAINTENANCE_INTERVAL);
+		started = true;
+		log.info("LongKeyedCache "+name+" started");
+	}
+	
+	/**
+	 * Sweeps the expired entries out of the next part of every segment. Called periodically once
+	 * the cache is started.
+	 */
+	public void run(){
+		long now = System.nanoTime();
+		for(Segment segment : segments){
+			numExpirations.add(segment.sweep(now));
+		}
+	}
+	
+	public synchronized void stop(){
+		log.info("LongKeyedCache "+name+" stopping");
+		if(maintenanceTask != null){
+			maintenanceTask.cancel(false);
+			maintenanceTask = null;
+		}
+		started = false;
+		log.info("LongKeyedCache "+name+" stopped");
+	}
+	
+	public void put(long key, T obj){
+		put(key, obj, defaultLifespan);
+	}
+	
+	public void put(long key, T obj, long lifespan){
+		if(obj == null){
+			throw new NullPointerException("LongKeyedCache "+name+" cannot hold null values");
+		}
+		checkStarted();
+		long hash = spread(key);
+		long expiryNanos = System.nanoTime() + CacheItem.toLifespanNanos(lifespan);
+		segmentFor(hash).put(key, hash, obj, expiryNanos);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T get(long key){
+		numGetRequests.increment();
+		long hash = spread(key);
+		Object value = segmentFor(hash).get(key, hash, System.nanoTime());
+		if(value == null){
+			numCacheMisses.increment();
+			return null;
+		}
+		numCacheHits.increment();
+		return (T) value;
+	}
+	
+	/**
+	 * Removes the key from the cache
+	 * 
+	 * @return true if the key was cached
+	 */
+	public boolean invalidate(long key){
+		long hash = spread(key);
+		return segmentFor(hash).remove(key, hash);
+	}
+	
+	/**
+	 * Removes everything from the cache
+	 */
+	public void invalidateAll(){
+		for(Segment segment : segments){
+			segment.clear();
+		}
+	}
+	
+	public int size(){
+		int size = 0;
+		for(Segment segment : segments){
+			size += segment.size;
+		}
+		return size;
+	}
+	
+	private void checkStarted(){
+		if(!started){
+			log.warn("Cache "+name+" has not been started. It will still work but stale entries will not be cleaned up, leading to possible memory leaks.");
+		}
+	}
+	
+	private Segment segmentFor(long hash){
+		return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+	}
+	
+	/**
+	 * Fibonacci hashing, so that sequential ids spread over both the segments (taken from the
+	 * high bits) and the slots of a segment (taken from the low bits)
+	 */
+	static long spread(long key){
+		long hash = key * 0x9e3779b97f4a7c15L;
+		return hash ^ (hash >>> 29);
+	}
+	
+	/**
+	 * One open-addressing table with linear probing, guarded by its own lock. Removals shift the
+	 * following entries of the probe sequence back instead of leaving tombstones, so lookups
+	 * never have to probe past deleted slots.
+	 */
+	private static final class Segment {
+		private static final int MAXIMUM_CAPACITY = 1 << 30;
+		
+		private final StampedLock lock = new StampedLock();
+		// replaced as a whole on resize so that an optimistic reader always sees arrays of one size
+		private Table table = new Table(INITIAL_SEGMENT_CAPACITY);
+		private volatile int size;
+		private int sweepCursor;
+		
+		Object get(long key, long hash, long now){
+			long stamp = lock.tryOptimisticRead();
+			Object value = find(table, key, hash, now);
+			if(!lock.validate(stamp)){
+				stamp = lock.readLock();
+				try {
+					value = find(table, key, hash, now);
+				}
+				finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			return value;
+		}
+		
+		private static Object find(Table t, long key, long hash, long now){
+			int mask = t.mask;
+			int i = (int) hash & mask;
+			// bounded, since an optimistic read may see the table mid-write
+			for(int probes=0; probes<=mask; probes++){
+				Object value = t.values[i];
+				if(value == null){
+					return null;
+				}
+				if(t.keys[i] == key){
+					return (now - t.expiryNanos[i] < 0) ? value : null;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+		
+		void put(long key, long hash, Object value, long expiryNanos){
+			long stamp = lock.writeLock();
+			try {
+				if(((size + 1) << 1) > table.values.length){
+					resize();
+				}
+				Table t = table;
+				int mask = t.mask;
+				int i = (int) hash & mask;
+				while(t.values[i] != null){
+					if(t.keys[i] == key){
+						t.values[i] = value;
+						t.expiryNanos[i] = expiryNanos;
+						return;
+					}
+					i = (i + 1) & mask;
+				}
+				t.keys[i] = key;
+				t.values[i] = value;
+				t.expiryNanos[i] = expiryNanos;
+				size++;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		boolean remove(long key, long hash){
+			long stamp = lock.writeLock();
+			try {
+				Table t = table;
+				int mask = t.mask;
+				int i = (int) hash & mask;
+				while(t.values[i] != null){
+					if(t.keys[i] == key){
+						deleteAt(t, i);
+						return true;
+					}
+					i = (i + 1) & mask;
+				}
+				return false;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Sweeps the next part of the table, starting where the previous sweep stopped.
+		 * 
+		 * @return the number of expired entries removed
+		 */
+		int sweep(long now){
+			int capacity = table.values.length;
+			int budget = Math.min(capacity, Math.max(MIN_SWEEP_SLOTS, capacity / SWEEP_RUNS_PER_PASS));
+			int removed = 0;
+			for(int swept=0; swept<budget; swept+=SWEEP_SLICE){
+				removed += sweepSlice(now);
+			}
+			return removed;
+		}
+		
+		private int sweepSlice(long now){
+			Table t = table;
+			// only the sweeper moves the cursor; a racing sweep can at worst visit a slice twice
+			int from = sweepCursor;
+			if(from >= t.values.length){
+				from = 0;
+			}
+			int to = Math.min(from + SWEEP_SLICE, t.values.length);
+			sweepCursor = (to == t.values.length) ? 0 : to;
+			if(!hasExpired(t, from, to, now)){
+				return 0;
+			}
+			long stamp = lock.writeLock();
+			try {
+				if(t != table){
+					// resized since the scan, the next slice starts over on the new table
+					return 0;
+				}
+				int removed = 0;
+				for(int i=from; i<to; i++){
+					// deleting shifts the next entry into slot i, so check it again
+					while((t.values[i] != null) && (now - t.expiryNanos[i] >= 0)){
+						deleteAt(t, i);
+						removed++;
+					}
+				}
+				return removed;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Lock-free scan of a slice. It may race with writers, so it is only a hint of whether the
+		 * write lock is worth taking; the slice is checked again under the lock.
+		 */
+		private static boolean hasExpired(Table t, int from, int to, long now){
+			for(int i=from; i<to; i++){
+				if((t.values[i] != null) && (now - t.expiryNanos[i] >= 0)){
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		void clear(){
+			long stamp = lock.writeLock();
+			try {
+				table = new Table(INITIAL_SEGMENT_CAPACITY);
+				size = 0;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		private void deleteAt(Table t, int i){
+			int mask = t.mask;
+			int hole = i;
+			int j = i;
+			while(true){
+				j = (j + 1) & mask;
+				if(t.values[j] == null){
+					break;
+				}
+				int home = (int) spread(t.keys[j]) & mask;
+				// the entry at j can fill the hole unless its home slot lies between the hole and j
+				if(((j - home) & mask) >= ((j - hole) & mask)){
+					t.keys[hole] = t.keys[j];
+					t.values[hole] = t.values[j];
+					t.expiryNanos[hole] = t.expiryNanos[j];
+					hole = j;
+				}
+			}
+			t.values[hole] = null;
+			size--;
+		}
+		
+		private void resize(){
+			Table old = table;
+			if(old.values.length >= MAXIMUM_CAPACITY){
+				throw new IllegalStateException("LongKeyedCache segment is full");
+			}
+			Table t = new Table(old.values.length << 1);
+			int mask = t.mask;
+			for(int i=0; i<old.values.length; i++){
+				if(old.values[i] != null){
+					int j = (int) spread(old.keys[i]) & mask;
+					while(t.values[j] != null){
+						j = (j + 1) & mask;
+					}
+					t.keys[j] = old.keys[i];
+					t.values[j] = old.values[i];
+					t.expiryNanos[j] = old.expiryNanos[i];
+				}
+			}
+			table = t;
+		}
+	}
+	
+	private static final class Table {
+		final long[] keys;
+		final Object[] values;
+		final long[] expiryNanos;
+		final int mask;
+		
+		Table(int capacity){
+			keys = new long[capacity];
+			values = new Object[capacity];
+			expiryNanos = new long[capacity];
+			mask = capacity - 1;
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getDefaultLifespan() {
+		return defaultLifespan;
+	}
+	
+	public void setDefaultLifespan(long defaultLifespan) {
+		this.defaultLifespan = defaultLifespan;
+	}
+	
+	public long getNumGetRequests() {
+		return numGetRequests.sum();
+	}
+	
+	public long getNumCacheHits() {
+		return numCacheHits.sum();
+	}
+	
+	public long getNumCacheMisses() {
+		return numCacheMisses.sum();
+	}
+	
+	/**
+	 * @return the number of expired entries removed by the periodic sweep
+	 */
+	public long getNumExpirations() {
+		return numExpirations.sum();
+	}
+	
+	public double getHitRatio() {
+		long requests = numGetRequests.sum();
+		if(requests == 0){
+			return 1.0d;
+		}
+		return (double) numCacheHits.sum() / requests;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Second cache tier holding serialized values outside the Java heap, in direct ByteBuffer slabs,
+ * so that large cached payloads do not add to old generation size and GC pauses.
+ * 
+ * The store is log structured. Values are appended to the current slab and the slabs are used
+ * as a ring. When the ring wraps, the oldest slab is recycled and every entry still in it is
+ * evicted, so eviction is FIFO by slab and never fragments the slabs. Entries that are read are
+ * promoted back to the heap tier by the owning cache and removed from here.
+ * 
+ * Only the index of entries lives on the heap. Appends and slab recycling take the write lock,
+ * reads take the read lock, and removals are lock free.
+ */
+class OffHeapStore {
+	private static final int MAX_SLAB_SIZE = 1 << 22; // 4MB
+	private static final int MIN_SLABS = 8;
+	
+	private final ConcurrentHashMap<String,Entry> index;
+	private final ReentrantReadWriteLock lock;
+	private final int slabSize;
+	private final ByteBuffer[] slabs;
+	private final int[] slabGenerations;
+	private final List<List<String>> slabKeys;
+	private final AtomicLong liveBytes;
+	private final LongAdder numEvictions;
+	private int writeSlab;
+	private int writeOffset;
+	
+	OffHeapStore(long capacity){
+		if(capacity < MIN_SLABS){
+			throw new IllegalArgumentException("Off-heap capacity " + capacity + " is too small");
+		}
+		slabSize = (int) Math.min(MAX_SLAB_SIZE, capacity / MIN_SLABS);
+		int numSlabs = (int) Math.min(Integer.MAX_VALUE, capacity / slabSize);
+		index = new ConcurrentHashMap<String, Entry>();
+		lock = new ReentrantReadWriteLock();
+		slabs = new ByteBuffer[numSlabs];
+		slabGenerations = new int[numSlabs];
+		slabKeys = new ArrayList<List<String>>(numSlabs);
+		for(int i=0; i<numSlabs; i++){
+			slabKeys.add(new ArrayList<String>());
+		}
+		liveBytes = new AtomicLong();
+		numEvictions = new LongAdder();
+		writeSlab = 0;
+		writeOffset = 0;
+	}
+	
+	/**
+	 * @return the stored entry, or null if the value is too large for a slab
+	 */
+	Entry put(String key, byte[] bytes, CacheItem<?> item){
+		if(bytes.length > slabSize){
+			return null;
+		}
+		lock.writeLock().lock();
+		try {
+			if((writeOffset + bytes.length) > slabSize){
+				writeSlab = (writeSlab + 1) % slabs.length;
+				writeOffset = 0;
+				recycle(writeSlab);
+			}
+			if(slabs[writeSlab] == null){
+				slabs[writeSlab] = ByteBuffer.allocateDirect(slabSize);
+			}
+			ByteBuffer slab = slabs[writeSlab].duplicate();
+			slab.position(writeOffset);
+			slab.put(bytes);
+			
+			Entry entry = new Entry(writeSlab, slabGenerations[writeSlab], writeOffset, bytes.length, item);
+			writeOffset += bytes.length;
+			slabKeys.get(writeSlab).add(key);
+			liveBytes.addAndGet(bytes.length);
+			Entry oldEntry = index.put(key, entry);
+			if(oldEntry != null){
+				liveBytes.addAndGet(-oldEntry.length);
+			}
+			return entry;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	Entry getEntry(String key){
+		return index.get(key);
+	}
+	
+	/**
+	 * @return the bytes of the entry, or null if its slab has since been recycled
+	 */
+	byte[] read(Entry entry){
+		lock.readLock().lock();
+		try {
+			if(slabGenerations[entry.slab] != entry.generation){
+				return null;
+			}
+			byte[] bytes = new byte[entry.length];
+			ByteBuffer slab = slabs[entry.slab].duplicate();
+			slab.position(entry.offset);
+			slab.get(bytes);
+			return bytes;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	Set<Map.Entry<String,Entry>> entries(){
+		return index.entrySet();
+	}
+	
+	boolean remove(String key){
+		Entry entry = index.remove(key);
+		if(entry != null){
+			liveBytes.addAndGet(-entry.length);
+			return true;
+		}
+		return false;
+	}
+	
+	boolean remove(String key, Entry entry){
+		if(index.remove(key, entry)){
+			liveBytes.addAndGet(-entry.length);
+			return true;
+		}
+		return false;
+	}
+	
+	private void recycle(int slab){
+		slabGenerations[slab]++;
+		List<String> keys = slabKeys.get(slab);
+		for(String key : keys){
+			Entry entry = index.get(key);
+			if((entry != null) && (entry.slab == slab) && index.remove(key, entry)){
+				liveBytes.addAndGet(-entry.length);
+				numEvictions.increment();
+			}
+		}
+		keys.clear();
+	}
+	
+	long getLiveBytes(){
+		return liveBytes.get();
+	}
+	
+	long getCapacity(){
+		return (long) slabSize * slabs.length;
+	}
+	
+	long getNumEvictions(){
+		return numEvictions.sum();
+	}
+	
+	/**
+	 * Location and expiry of a stored value
+	 */
+	static class Entry {
+		final int slab;
+		final int generation;
+		final int offset;
+		final int length;
+		final long timestamp;
+		final long expiry;
+		final long writeNanos;
+		final long expiryNanos;
+		
+		Entry(int slab, int generation, int offset, int length, CacheItem<?> item){
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+			this.timestamp = item.getTimestampMillis();
+			this.expiry = item.getExpiryMillis();
+			this.writeNanos = item.getWriteNanos();
+			this.expiryNanos = item.getExpiryNanos();
+		}
+		
+		boolean hasExpired(long nowNanos){
+			return (nowNanos - expiryNanos) > 0;
+		}
+	}
+}
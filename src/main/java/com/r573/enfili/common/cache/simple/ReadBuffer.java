@@ -0,0 +1,78 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy, bounded ring buffer recording cache hits so that the eviction policy can be updated
+ * in batches by whichever thread holds the eviction lock, instead of every read taking the lock.
+ * When the buffer is full new reads are dropped, which only makes the policy slightly less
+ * accurate.
+ * 
+ * Any thread may offer. Only the thread holding the eviction lock may poll.
+ */
+class ReadBuffer<E> {
+	static final int SIZE = 128;
+	static final int DRAIN_THRESHOLD = SIZE / 4;
+	private static final int MASK = SIZE - 1;
+	
+	private final AtomicLong writeCounter = new AtomicLong();
+	private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<E>(SIZE);
+	private volatile long readCounter;
+	
+	/**
+	 * @return false if the element was dropped
+	 */
+	boolean offer(E e){
+		long head = readCounter;
+		long tail = writeCounter.get();
+		if((tail - head) >= SIZE){
+			return false;
+		}
+		if(writeCounter.compareAndSet(tail, tail + 1)){
+			buffer.lazySet((int) (tail & MASK), e);
+			return true;
+		}
+		return false;
+	}
+	
+	int size(){
+		return (int) (writeCounter.get() - readCounter);
+	}
+	
+	/**
+	 * @return the next element, or null if the buffer is empty or the next slot has been
+	 * claimed but not yet published
+	 */
+	E poll(){
+		long head = readCounter;
+		if(head == writeCounter.get()){
+			return null;
+		}
+		int index = (int) (head & MASK);
+		E e = buffer.get(index);
+		if(e == null){
+			return null;
+		}
+		buffer.lazySet(index, null);
+		readCounter = head + 1;
+		return e;
+	}
+}
@@ -17,11 +17,30 @@
  */
 package com.r573.enfili.common.cache.simple;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,131 +48,1232 @@ import org.slf4j.LoggerFactory;
 /**
  * Very simple in-memory cache meant for small data sets
  * 
+ * Reads and writes do not take a cache-wide lock. Entries are held in a ConcurrentHashMap and
+ * the statistics counters are striped, so concurrent request threads do not contend with each
+ * other or with expiry.
+ * 
+ * Expired entries are removed by a hierarchical timer wheel, which only touches the entries
+ * that are due instead of scanning the whole cache. The wheel is advanced whenever the cache
+ * is written to and, once the cache is started, every second by a maintenance thread shared by
+ * all caches. Writes are handed to the wheel and the eviction policy through a buffer, so
+ * unbounded caches only touch the eviction lock if it is free.
+ * 
+ * get(key, loader) and getAll(keys, bulkLoader) load missing entries on demand. Only one load
+ * per key is in flight at a time: threads that miss on a key which is already being loaded
+ * wait for that load and share its result, so an expiring hot key does not send every request
+ * thread to the database at once.
+ * 
+ * With setRefreshAfterWrite, an entry older than the refresh threshold is still returned by
+ * get(key, loader) but is reloaded in the background, so hot keys are refreshed before they
+ * expire instead of a caller paying for the reload. With setStaleGracePeriod, an expired entry
+ * is kept for the grace period and served by get(key, loader) if reloading it fails.
+ * 
+ * A bounded cache can be given an off-heap tier with setOffHeapTier. Entries evicted from the
+ * heap are then serialized into direct memory, and moved back to the heap when they are read,
+ * so that large payloads can stay cached without adding to GC pressure.
+ * 
+ * The bulk operations getAll(keys), putAll and invalidateAll apply a whole batch of keys and then
+ * run the buffered policy maintenance once, rather than once per key.
+ * 
+ * With setSnapshotFile, stop() writes the live entries to a snapshot file and the next start()
+ * restores them, so a restarted application does not begin with a cold cache.
+ * 
+ * The cache can optionally be bounded by entry count (setMaximumSize) or by total weight
+ * (setMaximumWeight with a Weigher). Bounded caches use a W-TinyLFU policy: new entries enter a
+ * small LRU admission window, and when the cache is full an entry leaving the window is only
+ * admitted to the main space if it has been used more often than the entry it would displace.
+ * Popularity is tracked in a compact frequency sketch, so a scan of one-off keys cannot flush
+ * out the frequently used entries. Hits are recorded in a lossy buffer and applied to the
+ * policy in batches, so reads still never wait on the eviction lock.
+ * 
  * @author ryanho
  *
  */
 public class SimpleInMemoryCache<T> implements Runnable {
 	private static Logger log = LoggerFactory.getLogger(SimpleInMemoryCache.class);
-	private static final long CLEANUP_INTERVAL = 300000L; // run the cleanup task once every 5 minutes
+	private static final long MAINTENANCE_INTERVAL = 1000L; // expire due entries once every second
 	private static final long DEFAULT_LIFESPAN = 15L * 60000L; // Default lifespan of 15 minutes
+	private static final long UNBOUNDED = -1L;
+	private static final double WINDOW_PERCENT = 0.01d; // share of the maximum given to the admission window
+	private static final double PROTECTED_PERCENT = 0.80d; // share of the main space given to the protected segment
+	private static final int REMOVAL_STRIPES = 64; // stripes of the removal stamps checked by demotions
+	
+	static final byte QUEUE_NONE = 0;
+	static final byte QUEUE_WINDOW = 1;
+	static final byte QUEUE_PROBATION = 2;
+	static final byte QUEUE_PROTECTED = 3;
 	
 	private String name;
-	private Thread t;
-	private Hashtable<String,CacheItem<T>> cache;
-	private long defaultLifespan;
-	private boolean stop;
-	private boolean started;
-	private long numGetRequests;
-	private long numCacheHits;
-	private long numCacheMisses;
+	private ScheduledFuture<?> maintenanceTask;
+	private ConcurrentHashMap<String,CacheItem<T>> cache;
+	private volatile long defaultLifespan;
+	private volatile long refreshAfterWriteNanos;
+	private volatile long staleGraceNanos;
+	private volatile Executor refreshExecutor;
+	private volatile boolean started;
+	private LongAdder numGetRequests;
+	private LongAdder numCacheHits;
+	private LongAdder numCacheMisses;
+	private LongAdder numEvictions;
+	private LongAdder numLoadSuccesses;
+	private LongAdder numLoadFailures;
+	private LongAdder totalLoadTime;
+	private final ConcurrentHashMap<String,CompletableFuture<T>> inFlightLoads;
+	
+	// off-heap tier, null unless enabled
+	private volatile OffHeapStore offHeapStore;
+	private volatile CacheCodec<T> codec;
+	private final ConcurrentLinkedQueue<Demotion<T>> pendingDemotions;
+	// bumped by every removal of a key in the stripe, so that a demotion can tell it raced with one
+	private final AtomicLongArray removalStamps;
+	private LongAdder numOffHeapHits;
+	private LongAdder serializationTime;
+	private LongAdder deserializationTime;
+	
+	// warm restart snapshot, null unless enabled
+	private volatile File snapshotFile;
+	private volatile CacheCodec<T> snapshotCodec;
+	
+	// eviction policy, everything below is guarded by evictionLock
+	private final ReentrantLock evictionLock;
+	private final TimerWheel<T> timerWheel;
+	private volatile long maximum;
+	private Weigher<? super T> weigher;
+	private long windowMaximum;
+	private long protectedMaximum;
+	private long weightedSize;
+	private long windowWeightedSize;
+	private long protectedWeightedSize;
+	private int linkedCount;
+	private final FrequencySketch sketch;
+	private final AccessOrderDeque<T> windowDeque;
+	private final AccessOrderDeque<T> probationDeque;
+	private final AccessOrderDeque<T> protectedDeque;
+	private final ReadBuffer<CacheItem<T>> readBuffer;
+	private final ConcurrentLinkedQueue<CacheItem<T>> pendingWrites;
+	private final ConcurrentLinkedQueue<CacheItem<T>> pendingRemovals;
 	
 	public SimpleInMemoryCache(String name){
 		this.name = name;
-		cache = new Hashtable<String, CacheItem<T>>();
+		cache = new ConcurrentHashMap<String, CacheItem<T>>();
 		this.defaultLifespan = DEFAULT_LIFESPAN;
-		stop = false;
+		refreshAfterWriteNanos = 0;
+		staleGraceNanos = 0;
+		refreshExecutor = CacheScheduler.defaultRefreshExecutor();
 		started = false;
-		numGetRequests = 0;
-		numCacheHits = 0;
-		numCacheMisses = 0;
-		t = new Thread(this);
+		numGetRequests = new LongAdder();
+		numCacheHits = new LongAdder();
+		numCacheMisses = new LongAdder();
+		numEvictions = new LongAdder();
+		numLoadSuccesses = new LongAdder();
+		numLoadFailures = new LongAdder();
+		totalLoadTime = new LongAdder();
+		inFlightLoads = new ConcurrentHashMap<String, CompletableFuture<T>>();
+		pendingDemotions = new ConcurrentLinkedQueue<Demotion<T>>();
+		removalStamps = new AtomicLongArray(REMOVAL_STRIPES);
+		numOffHeapHits = new LongAdder();
+		serializationTime = new LongAdder();
+		deserializationTime = new LongAdder();
+		evictionLock = new ReentrantLock();
+		timerWheel = new TimerWheel<T>(this, System.nanoTime());
+		maximum = UNBOUNDED;
+		sketch = new FrequencySketch();
+		windowDeque = new AccessOrderDeque<T>();
+		probationDeque = new AccessOrderDeque<T>();
+		protectedDeque = new AccessOrderDeque<T>();
+		readBuffer = new ReadBuffer<CacheItem<T>>();
+		pendingWrites = new ConcurrentLinkedQueue<CacheItem<T>>();
+		pendingRemovals = new ConcurrentLinkedQueue<CacheItem<T>>();
 	}
 	
-	public void start(){
-		log.info("SimpleInMemoryCache "+name+" started");
-		t.start();
+	/**
+	 * Creates a cache holding at most maximumSize entries
+	 */
+	public SimpleInMemoryCache(String name, long maximumSize){
+		this(name);
+		setMaximumSize(maximumSize);
 	}
 	
-	public void run(){
-		started = true;
-		while(!stop){
-			try {
-				Thread.sleep(CLEANUP_INTERVAL);
-				cleanup();
-			} catch (InterruptedException e) {
-				stop = true;
-			}
+	public synchronized void start(){
+		if(maintenanceTask != null){
+			log.warn("SimpleInMemoryCache "+name+" already started");
+			return;
+		}
+		if(snapshotFile != null){
+			restoreSnapshot();
 		}
+		maintenanceTask = CacheScheduler.scheduleMaintenance(this, MAINTENANCE_INTERVAL);
+		started = true;
+		log.info("SimpleInMemoryCache "+name+" started");
 	}
 	
-	private synchronized void cleanup(){
-		log.debug("Cache cleanup");
-		List<String> removeList = new ArrayList<String>();
-		Set<String> keys = cache.keySet();
-		for(String key : keys){
-			CacheItem<T> item = cache.get(key);
-			if(item.hasExpired()){
-				removeList.add(key);
-			}
+	/**
+	 * Runs a maintenance pass, expiring due entries. Called periodically once the cache is started.
+	 */
+	public void run(){
+		evictionLock.lock();
+		try {
+			maintenance();
 		}
-		for(String removeKey : removeList){
-			cache.remove(removeKey);
+		catch (RuntimeException e) {
+			// never let an exception cancel the periodic task
+			log.error("Maintenance of SimpleInMemoryCache "+name+" failed", e);
 		}
-		log.debug("Removed " + removeList.size() + " expired entries from cache");
+		finally {
+			evictionLock.unlock();
+		}
+		demoteEvicted();
 	}
 	
-	public void stop(){
+	public synchronized void stop(){
 		log.info("SimpleInMemoryCache "+name+" stopping");
-		stop = true;
-		t.interrupt();
-		boolean stopped = false;
-		while(!stopped){
-			try {
-				Thread.sleep(500);
-				if(!t.isAlive()){
-					log.info("SimpleInMemoryCache "+name+" stopped");
-					stopped = true;
-					t = null; // prevent circular references
-				}
-				else{
-					log.info("Waiting for SimpleInMemoryCache "+name+" to stop");
-				}
-			} catch (InterruptedException e) {
-				stopped = true;
-			}
+		if(maintenanceTask != null){
+			maintenanceTask.cancel(false);
+			maintenanceTask = null;
+		}
+		if(snapshotFile != null){
+			writeSnapshot();
 		}
+		started = false;
+		log.info("SimpleInMemoryCache "+name+" stopped");
 	}
 	
-	public synchronized void put(String key, T obj){
+	public void put(String key, T obj){
 		put(key,obj,defaultLifespan);
 	}
 	
-	public synchronized void put(String key, T obj, long lifespan){
+	public void put(String key, T obj, long lifespan){
 		checkStarted();
-		CacheItem<T> item = new CacheItem<T>(obj, lifespan);
-		cache.put(key, item);		
+		putItem(key, new CacheItem<T>(obj, lifespan));
 	}
-	public synchronized void put(String key, T obj, Date expiry){
+	public void put(String key, T obj, Date expiry){
 		checkStarted();
-		CacheItem<T> item = new CacheItem<T>(obj, expiry);
-		cache.put(key, item);		
+		putItem(key, new CacheItem<T>(obj, expiry));
+	}
+	
+	public void putAll(Map<String,? extends T> entries){
+		putAll(entries, defaultLifespan);
 	}
 	
-	public synchronized T get(String key){
-		numGetRequests++;
+	/**
+	 * Puts all the entries, then runs the eviction policy once for the whole batch. A bounded
+	 * cache may therefore briefly exceed its bound by up to the size of the batch.
+	 */
+	public void putAll(Map<String,? extends T> entries, long lifespan){
+		checkStarted();
+		for(Map.Entry<String,? extends T> entry : entries.entrySet()){
+			addItem(entry.getKey(), new CacheItem<T>(entry.getValue(), lifespan));
+		}
+		performMaintenance(isBounded());
+	}
+	
+	private void putItem(String key, CacheItem<T> item){
+		addItem(key, item);
+		// bounded caches evict before the writer carries on, so wait for the lock. Otherwise the
+		// write will be picked up by the current lock holder or the next maintenance pass.
+		performMaintenance(isBounded());
+	}
+	
+	private void addItem(String key, CacheItem<T> item){
+		item.key = key;
+		item.graceNanos = staleGraceNanos;
+		if(isBounded()){
+			item.weight = weigh(key, item.getCachedObject());
+		}
+		CacheItem<T> oldItem = cache.put(key, item);
+		if(oldItem != null){
+			pendingRemovals.add(oldItem);
+		}
+		pendingWrites.add(item);
+		if(offHeapStore != null){
+			offHeapStore.remove(key);
+		}
+	}
+	
+	public T get(String key){
+		CacheItem<T> item = getItem(key, System.nanoTime());
+		if(item == null){
+			return null;
+		}
+		return item.getCachedObject();
+	}
+	
+	/**
+	 * Looks up all the keys, then runs the buffered policy maintenance once for the whole batch
+	 * 
+	 * @return the values found, in the order of the keys, and the keys that were not found so
+	 * that they can be loaded in one batch
+	 */
+	public BulkGetResult<T> getAll(Collection<String> keys){
+		long now = System.nanoTime();
+		Map<String,T> hits = new LinkedHashMap<String, T>();
+		List<String> missingKeys = new ArrayList<String>();
+		for(String key : keys){
+			CacheItem<T> item = lookup(key, now, false);
+			if(item == null){
+				missingKeys.add(key);
+			}
+			else{
+				hits.put(key, item.getCachedObject());
+			}
+		}
+		performMaintenance(false);
+		return new BulkGetResult<T>(hits, missingKeys);
+	}
+	
+	private CacheItem<T> getItem(String key, long now){
+		return lookup(key, now, true);
+	}
+	
+	/**
+	 * @param maintain false to leave the policy maintenance for the caller, for batches
+	 */
+	private CacheItem<T> lookup(String key, long now, boolean maintain){
+		numGetRequests.increment();
 		checkStarted();
 		CacheItem<T> item = cache.get(key);
 		if(item == null){
-			numCacheMisses++;
+			if(offHeapStore != null){
+				item = promote(key, now);
+				if(item != null){
+					numCacheHits.increment();
+					numOffHeapHits.increment();
+					return item;
+				}
+			}
+			numCacheMisses.increment();
 			return null;
 		}
 		else{
-			if(item.hasExpired()){
-				cache.remove(key);
-				numCacheMisses++;
+			if(item.hasExpired(now)){
+				// expired items are kept for the grace period in case a reload fails
+				if(item.isPastGracePeriod(now) && cache.remove(key, item)){
+					afterRemoval(item, maintain);
+				}
+				numCacheMisses.increment();
 				return null;
 			}
-			else{numCacheHits++;
-				return item.getCachedObject();
+			else{
+				numCacheHits.increment();
+				afterRead(item, maintain);
+				return item;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the cached value for the key, loading and caching it with the loader if it is
+	 * missing. If another thread is already loading the key, waits for that load instead.
+	 * 
+	 * If refresh after write is set and the cached entry is older than the threshold, the entry
+	 * is returned and reloaded in the background. If a stale grace period is set and the load
+	 * fails, an expired entry within the grace period is returned instead of the failure.
+	 * 
+	 * @throws CacheLoadException if the loader threw a checked exception. Runtime exceptions
+	 * from the loader are rethrown as is.
+	 */
+	public T get(String key, CacheLoader<? extends T> loader){
+		long now = System.nanoTime();
+		CacheItem<T> item = getItem(key, now);
+		if(item != null){
+			long refreshNanos = refreshAfterWriteNanos;
+			if((refreshNanos > 0) && ((now - item.getWriteNanos()) > refreshNanos)){
+				refresh(key, loader);
+			}
+			return item.getCachedObject();
+		}
+		try {
+			return load(key, loader);
+		}
+		catch (RuntimeException e) {
+			CacheItem<T> staleItem = cache.get(key);
+			if((staleItem != null) && !staleItem.isPastGracePeriod(System.nanoTime())){
+				log.warn("Serving stale value for key " + key + " from cache " + name + " after failed load", e);
+				return staleItem.getCachedObject();
+			}
+			throw e;
+		}
+	}
+	
+	private T load(String key, CacheLoader<? extends T> loader){
+		T value;
+		CompletableFuture<T> load = new CompletableFuture<T>();
+		CompletableFuture<T> inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+		if(inFlightLoad != null){
+			return waitForLoad(key, inFlightLoad);
+		}
+		try {
+			// the previous load may have completed between our miss and registering this one
+			value = getQuietly(key);
+			if(value == null){
+				value = loadValue(key, loader);
 			}
+			load.complete(value);
+			return value;
+		}
+		catch (RuntimeException e) {
+			load.completeExceptionally(e);
+			throw e;
+		}
+		catch (Error e) {
+			load.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlightLoads.remove(key, load);
 		}
 	}
 	
+	/**
+	 * Returns the cached values for the keys, loading the missing ones with a single call to the
+	 * bulk loader. Keys that are already being loaded by another thread are waited for rather
+	 * than loaded again.
+	 * 
+	 * @return the values found, in the order of the keys. Keys without a value are left out.
+	 * @throws CacheLoadException if the loader threw a checked exception. Runtime exceptions
+	 * from the loader are rethrown as is.
+	 */
+	public Map<String,T> getAll(Collection<String> keys, BulkCacheLoader<? extends T> bulkLoader){
+		Map<String,T> result = new LinkedHashMap<String, T>();
+		Map<String,CompletableFuture<T>> ownLoads = new LinkedHashMap<String, CompletableFuture<T>>();
+		Map<String,CompletableFuture<T>> otherLoads = new LinkedHashMap<String, CompletableFuture<T>>();
+		for(String key : keys){
+			T value = get(key);
+			if(value != null){
+				result.put(key, value);
+				continue;
+			}
+			CompletableFuture<T> load = new CompletableFuture<T>();
+			CompletableFuture<T> inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+			if(inFlightLoad == null){
+				ownLoads.put(key, load);
+			}
+			else{
+				otherLoads.put(key, inFlightLoad);
+			}
+		}
+		
+		// the previous load of a key may have completed between our miss and registering this one
+		Iterator<Map.Entry<String,CompletableFuture<T>>> ownLoadIterator = ownLoads.entrySet().iterator();
+		while(ownLoadIterator.hasNext()){
+			Map.Entry<String,CompletableFuture<T>> ownLoad = ownLoadIterator.next();
+			T value = getQuietly(ownLoad.getKey());
+			if(value != null){
+				ownLoad.getValue().complete(value);
+				inFlightLoads.remove(ownLoad.getKey(), ownLoad.getValue());
+				result.put(ownLoad.getKey(), value);
+				ownLoadIterator.remove();
+			}
+		}
+		
+		if(!ownLoads.isEmpty()){
+			try {
+				Map<String,? extends T> loaded = loadValues(ownLoads.keySet(), bulkLoader);
+				for(Map.Entry<String,CompletableFuture<T>> ownLoad : ownLoads.entrySet()){
+					T value = loaded.get(ownLoad.getKey());
+					ownLoad.getValue().complete(value);
+					if(value != null){
+						result.put(ownLoad.getKey(), value);
+					}
+				}
+			}
+			catch (RuntimeException e) {
+				for(CompletableFuture<T> load : ownLoads.values()){
+					load.completeExceptionally(e);
+				}
+				throw e;
+			}
+			catch (Error e) {
+				for(CompletableFuture<T> load : ownLoads.values()){
+					load.completeExceptionally(e);
+				}
+				throw e;
+			}
+			finally {
+				for(Map.Entry<String,CompletableFuture<T>> ownLoad : ownLoads.entrySet()){
+					inFlightLoads.remove(ownLoad.getKey(), ownLoad.getValue());
+				}
+			}
+		}
+		
+		for(Map.Entry<String,CompletableFuture<T>> otherLoad : otherLoads.entrySet()){
+			T value = waitForLoad(otherLoad.getKey(), otherLoad.getValue());
+			if(value != null){
+				result.put(otherLoad.getKey(), value);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Reloads the key on the refresh executor, unless a load of the key is already in flight
+	 */
+	private void refresh(final String key, final CacheLoader<? extends T> loader){
+		final CompletableFuture<T> load = new CompletableFuture<T>();
+		if(inFlightLoads.putIfAbsent(key, load) != null){
+			return;
+		}
+		Runnable refreshTask = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load.complete(loadValue(key, loader));
+				}
+				catch (RuntimeException e) {
+					log.warn("Failed to refresh key " + key + " in cache " + name, e);
+					load.completeExceptionally(e);
+				}
+				catch (Error e) {
+					load.completeExceptionally(e);
+					throw e;
+				}
+				finally {
+					inFlightLoads.remove(key, load);
+				}
+			}
+		};
+		try {
+			refreshExecutor.execute(refreshTask);
+		}
+		catch (RejectedExecutionException e) {
+			log.warn("Refresh of key " + key + " in cache " + name + " rejected by executor");
+			inFlightLoads.remove(key, load);
+			load.completeExceptionally(e);
+		}
+	}
+	
+	private T loadValue(String key, CacheLoader<? extends T> loader){
+		long startTime = System.nanoTime();
+		boolean success = false;
+		try {
+			T value = loader.load(key);
+			if(value != null){
+				put(key, value);
+			}
+			success = true;
+			return value;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new CacheLoadException("Failed to load key " + key + " into cache " + name, e);
+		}
+		finally {
+			recordLoad(startTime, success);
+		}
+	}
+	
+	private Map<String,? extends T> loadValues(Collection<String> keys, BulkCacheLoader<? extends T> bulkLoader){
+		long startTime = System.nanoTime();
+		boolean success = false;
+		try {
+			Map<String,? extends T> values = bulkLoader.loadAll(keys);
+			if(values == null){
+				values = new LinkedHashMap<String, T>();
+			}
+			for(Map.Entry<String,? extends T> entry : values.entrySet()){
+				if(entry.getValue() != null){
+					put(entry.getKey(), entry.getValue());
+				}
+			}
+			success = true;
+			return values;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new CacheLoadException("Failed to load " + keys.size() + " keys into cache " + name, e);
+		}
+		finally {
+			recordLoad(startTime, success);
+		}
+	}
+	
+	private void recordLoad(long startTime, boolean success){
+		totalLoadTime.add(System.nanoTime() - startTime);
+		if(success){
+			numLoadSuccesses.increment();
+		}
+		else{
+			numLoadFailures.increment();
+		}
+	}
+	
+	private T waitForLoad(String key, CompletableFuture<T> load){
+		try {
+			return load.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CacheLoadException("Interrupted while waiting for key " + key + " to load into cache " + name, e);
+		}
+		catch (ExecutionException e) {
+			// the loading thread has already wrapped checked exceptions
+			if(e.getCause() instanceof Error){
+				throw (Error) e.getCause();
+			}
+			throw (RuntimeException) e.getCause();
+		}
+	}
+	
+	/**
+	 * @return the value if present and not expired, without affecting the statistics
+	 */
+	private T getQuietly(String key){
+		CacheItem<T> item = cache.get(key);
+		if((item == null) || item.hasExpired()){
+			return null;
+		}
+		return item.getCachedObject();
+	}
+	
+	/**
+	 * Removes the key from the cache
+	 * 
+	 * @return true if the key was cached
+	 */
+	public boolean invalidate(String key){
+		boolean removed = removeKey(key);
+		performMaintenance(false);
+		return removed;
+	}
+	
+	/**
+	 * Removes the keys from the cache
+	 * 
+	 * @return the number of keys that were cached
+	 */
+	public int invalidateAll(Collection<String> keys){
+		int numRemoved = 0;
+		for(String key : keys){
+			if(removeKey(key)){
+				numRemoved++;
+			}
+		}
+		performMaintenance(true);
+		return numRemoved;
+	}
+	
+	/**
+	 * Removes every key matching the predicate from the cache, including keys in the off-heap tier
+	 * 
+	 * @return the number of keys removed
+	 */
+	public int invalidateAll(Predicate<? super String> keyPredicate){
+		int numRemoved = 0;
+		for(String key : cache.keySet()){
+			if(keyPredicate.test(key) && removeKey(key)){
+				numRemoved++;
+			}
+		}
+		OffHeapStore store = offHeapStore;
+		if(store != null){
+			// keys evicted while the heap was scanned are in neither tier until their demotion
+			for(int i=0; i<REMOVAL_STRIPES; i++){
+				removalStamps.incrementAndGet(i);
+			}
+			for(Map.Entry<String,OffHeapStore.Entry> entry : store.entries()){
+				if(keyPredicate.test(entry.getKey()) && store.remove(entry.getKey(), entry.getValue())){
+					numRemoved++;
+				}
+			}
+		}
+		performMaintenance(true);
+		return numRemoved;
+	}
+	
+	/**
+	 * Removes everything from the cache
+	 */
+	public void invalidateAll(){
+		invalidateAll(new Predicate<String>() {
+			@Override
+			public boolean test(String key) {
+				return true;
+			}
+		});
+	}
+	
+	private boolean removeKey(String key){
+		boolean removed = false;
+		CacheItem<T> item = cache.remove(key);
+		if(item != null){
+			pendingRemovals.add(item);
+			removed = true;
+		}
+		// before the off-heap removal, so that a demotion of the key either sees it or is removed by it
+		removalStamps.incrementAndGet(removalStripe(key));
+		OffHeapStore store = offHeapStore;
+		if((store != null) && store.remove(key)){
+			removed = true;
+		}
+		return removed;
+	}
+	
+	public int size(){
+		return cache.size();
+	}
+	
 	private void checkStarted(){
 		if(!started){
 			log.warn("Cache "+name+" has not been started. It will still work but stale entries will not be cleaned up, leading to possible memory leaks.");
 		}
 	}
+	
+	/**
+	 * Bounds the cache to the given number of entries. Can be called again to change the bound,
+	 * but cannot be combined with setMaximumWeight.
+	 */
+	public void setMaximumSize(long maximumSize){
+		setMaximum(maximumSize, null);
+	}
+	
+	/**
+	 * Bounds the cache to the given total weight, as calculated by the weigher for each entry.
+	 * Can be called again to change the bound, but the weigher cannot be changed.
+	 */
+	public void setMaximumWeight(long maximumWeight, Weigher<? super T> weigher){
+		if(weigher == null){
+			throw new IllegalArgumentException("Weigher must not be null");
+		}
+		setMaximum(maximumWeight, weigher);
+	}
+	
+	private void setMaximum(long maximum, Weigher<? super T> weigher){
+		if(maximum < 0){
+			throw new IllegalArgumentException("Maximum must not be negative");
+		}
+		evictionLock.lock();
+		try {
+			boolean wasBounded = isBounded();
+			if(wasBounded && (weigher != this.weigher)){
+				throw new IllegalStateException("Cache " + name + " is already bounded with a different weigher");
+			}
+			this.weigher = weigher;
+			this.maximum = maximum;
+			windowMaximum = (long) (maximum * WINDOW_PERCENT);
+			protectedMaximum = (long) ((maximum - windowMaximum) * PROTECTED_PERCENT);
+			if(weigher == null){
+				sketch.ensureCapacity(maximum);
+			}
+			if(!wasBounded){
+				// entries put before the bound was set are not yet known to the policy
+				for(CacheItem<T> item : cache.values()){
+					if(item.queueType == QUEUE_NONE){
+						item.weight = weigh(item.key, item.getCachedObject());
+						link(item);
+					}
+				}
+			}
+			maintenance();
+		}
+		finally {
+			evictionLock.unlock();
+		}
+		demoteEvicted();
+	}
+	
+	/**
+	 * Adds an off-heap second tier of the given capacity in bytes. Entries evicted from the heap
+	 * tier by the size bound are serialized with the codec and kept off-heap until they are read
+	 * again or the off-heap tier evicts them. Only applies to bounded caches, and can only be
+	 * set once.
+	 */
+	public synchronized void setOffHeapTier(long capacityBytes, CacheCodec<T> codec){
+		if(codec == null){
+			throw new IllegalArgumentException("Codec must not be null");
+		}
+		if(offHeapStore != null){
+			throw new IllegalStateException("Cache " + name + " already has an off-heap tier");
+		}
+		this.codec = codec;
+		this.offHeapStore = new OffHeapStore(capacityBytes);
+	}
+	
+	/**
+	 * Enables warm restarts. stop() writes the unexpired entries to the snapshot file, encoded
+	 * with the codec, and start() restores them with their original expiry and deletes the file.
+	 */
+	public void setSnapshotFile(File snapshotFile, CacheCodec<T> codec){
+		if(codec == null){
+			throw new IllegalArgumentException("Codec must not be null");
+		}
+		this.snapshotCodec = codec;
+		this.snapshotFile = snapshotFile;
+	}
+	
+	private boolean isBounded(){
+		return maximum != UNBOUNDED;
+	}
+	
+	private int weigh(String key, T obj){
+		if(weigher == null){
+			return 1;
+		}
+		int weight = weigher.weigh(key, obj);
+		if(weight < 0){
+			throw new IllegalArgumentException("Weigher returned negative weight " + weight + " for key " + key);
+		}
+		return weight;
+	}
+	
+	private void afterRead(CacheItem<T> item, boolean maintain){
+		if(!isBounded()){
+			return;
+		}
+		readBuffer.offer(item);
+		if(maintain && (readBuffer.size() >= ReadBuffer.DRAIN_THRESHOLD)){
+			performMaintenance(false);
+		}
+	}
+	
+	private void afterRemoval(CacheItem<T> item, boolean maintain){
+		pendingRemovals.add(item);
+		if(maintain){
+			performMaintenance(false);
+		}
+	}
+	
+	private void performMaintenance(boolean waitForLock){
+		if(waitForLock){
+			evictionLock.lock();
+		}
+		else if(!evictionLock.tryLock()){
+			return;
+		}
+		try {
+			maintenance();
+		}
+		finally {
+			evictionLock.unlock();
+		}
+		demoteEvicted();
+	}
+	
+	// Policy maintenance. All methods below must be called with evictionLock held.
+	
+	private void maintenance(){
+		CacheItem<T> item;
+		while((item = pendingRemovals.poll()) != null){
+			timerWheel.deschedule(item);
+			unlink(item);
+		}
+		while((item = pendingWrites.poll()) != null){
+			onWrite(item);
+		}
+		while((item = readBuffer.poll()) != null){
+			onAccess(item);
+		}
+		timerWheel.advance(System.nanoTime());
+		if(isBounded()){
+			evictEntries();
+		}
+	}
+	
+	private void onWrite(CacheItem<T> item){
+		// skip items that were replaced or removed before the policy got to see them
+		if(cache.get(item.key) != item){
+			return;
+		}
+		if(item.nextInTimer == null){
+			timerWheel.schedule(item);
+		}
+		if(isBounded()){
+			link(item);
+		}
+	}
+	
+	/**
+	 * Called by the timer wheel for an item that is due
+	 * 
+	 * @return true if the item is no longer in the cache
+	 */
+	boolean expire(CacheItem<T> item){
+		unlink(item);
+		cache.remove(item.key, item);
+		return true;
+	}
+	
+	private void link(CacheItem<T> item){
+		// skip items that were replaced or removed before the policy got to see them
+		if((item.queueType != QUEUE_NONE) || (cache.get(item.key) != item)){
+			return;
+		}
+		item.queueType = QUEUE_WINDOW;
+		windowDeque.addLast(item);
+		windowWeightedSize += item.weight;
+		weightedSize += item.weight;
+		linkedCount++;
+		if(weigher != null){
+			sketch.ensureCapacity(linkedCount);
+		}
+		sketch.increment(item.key);
+	}
+	
+	private void unlink(CacheItem<T> item){
+		switch(item.queueType){
+		case QUEUE_WINDOW:
+			windowDeque.remove(item);
+			windowWeightedSize -= item.weight;
+			break;
+		case QUEUE_PROBATION:
+			probationDeque.remove(item);
+			break;
+		case QUEUE_PROTECTED:
+			protectedDeque.remove(item);
+			protectedWeightedSize -= item.weight;
+			break;
+		default:
+			return;
+		}
+		item.queueType = QUEUE_NONE;
+		weightedSize -= item.weight;
+		linkedCount--;
+	}
+	
+	private void onAccess(CacheItem<T> item){
+		switch(item.queueType){
+		case QUEUE_WINDOW:
+			windowDeque.moveToBack(item);
+			break;
+		case QUEUE_PROBATION:
+			// second hit while in the main space, promote to the protected segment
+			probationDeque.remove(item);
+			item.queueType = QUEUE_PROTECTED;
+			protectedDeque.addLast(item);
+			protectedWeightedSize += item.weight;
+			demoteFromProtected();
+			break;
+		case QUEUE_PROTECTED:
+			protectedDeque.moveToBack(item);
+			break;
+		default:
+			// already removed
+			return;
+		}
+		sketch.increment(item.key);
+	}
+	
+	private void demoteFromProtected(){
+		while(protectedWeightedSize > protectedMaximum){
+			CacheItem<T> item = protectedDeque.peekFirst();
+			if(item == null){
+				break;
+			}
+			protectedDeque.remove(item);
+			protectedWeightedSize -= item.weight;
+			item.queueType = QUEUE_PROBATION;
+			probationDeque.addLast(item);
+		}
+	}
+	
+	private void evictEntries(){
+		// items overflowing the admission window move to the end of probation as candidates
+		CacheItem<T> candidate = null;
+		while(windowWeightedSize > windowMaximum){
+			CacheItem<T> item = windowDeque.peekFirst();
+			if(item == null){
+				break;
+			}
+			windowDeque.remove(item);
+			windowWeightedSize -= item.weight;
+			item.queueType = QUEUE_PROBATION;
+			probationDeque.addLast(item);
+			if(candidate == null){
+				candidate = item;
+			}
+		}
+		
+		// evict whichever of the candidate and the probation victim is used less frequently
+		while(weightedSize > maximum){
+			CacheItem<T> victim = probationDeque.peekFirst();
+			if(victim == null){
+				victim = protectedDeque.peekFirst();
+			}
+			if(victim == null){
+				victim = windowDeque.peekFirst();
+			}
+			if(victim == null){
+				break;
+			}
+			if((candidate == null) || (candidate == victim)){
+				if(candidate == victim){
+					candidate = candidate.nextInAccessOrder;
+				}
+				evict(victim);
+			}
+			else if((candidate.weight > maximum) || (sketch.frequency(candidate.key) <= sketch.frequency(victim.key))){
+				CacheItem<T> rejected = candidate;
+				candidate = candidate.nextInAccessOrder;
+				evict(rejected);
+			}
+			else{
+				evict(victim);
+			}
+		}
+	}
+	
+	private void evict(CacheItem<T> item){
+		unlink(item);
+		timerWheel.deschedule(item);
+		// read before the item leaves the heap, so that any removal of the key after that bumps it
+		long removalStamp = removalStamps.get(removalStripe(item.key));
+		if(cache.remove(item.key, item)){
+			numEvictions.increment();
+			if(offHeapStore != null){
+				// serialized after the lock is released, see demoteEvicted
+				pendingDemotions.add(new Demotion<T>(item, removalStamp));
+			}
+		}
+	}
+	
+	// Off-heap tier
+	
+	/**
+	 * Moves entries evicted from the heap to the off-heap tier. Called without the eviction lock
+	 * held, so that serialization does not hold up other writers.
+	 */
+	private void demoteEvicted(){
+		OffHeapStore store = offHeapStore;
+		Demotion<T> demotion;
+		while((demotion = pendingDemotions.poll()) != null){
+			CacheItem<T> item = demotion.item;
+			if((store == null) || item.hasExpired()){
+				continue;
+			}
+			byte[] bytes;
+			long startTime = System.nanoTime();
+			try {
+				bytes = codec.encode(item.getCachedObject());
+			}
+			catch (RuntimeException e) {
+				log.warn("Unable to serialize key " + item.key + " of cache " + name + " for the off-heap tier", e);
+				continue;
+			}
+			finally {
+				serializationTime.add(System.nanoTime() - startTime);
+			}
+			OffHeapStore.Entry entry = store.put(item.key, bytes, item);
+			if((entry != null) && (cache.containsKey(item.key) || (removalStamps.get(removalStripe(item.key)) != demotion.removalStamp))){
+				// the key was put again or invalidated while we were demoting, the value must not come back
+				store.remove(item.key, entry);
+			}
+		}
+	}
+	
+	private static int removalStripe(String key){
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (REMOVAL_STRIPES - 1);
+	}
+	
+	/**
+	 * An entry evicted from the heap, waiting to be serialized into the off-heap tier
+	 */
+	private static final class Demotion<T> {
+		final CacheItem<T> item;
+		final long removalStamp;
+		
+		Demotion(CacheItem<T> item, long removalStamp){
+			this.item = item;
+			this.removalStamp = removalStamp;
+		}
+	}
+	
+	// Snapshots
+	
+	private void writeSnapshot(){
+		long startTime = System.currentTimeMillis();
+		long now = System.nanoTime();
+		CacheSnapshot.Writer writer;
+		try {
+			writer = new CacheSnapshot.Writer(snapshotFile);
+		}
+		catch (IOException e) {
+			log.error("Unable to create snapshot " + snapshotFile + " of cache " + name, e);
+			return;
+		}
+		try {
+			for(CacheItem<T> item : cache.values()){
+				if(!item.hasExpired(now)){
+					writer.append(item.key, item.getTimestampMillis(), item.getExpiryMillis(), encodeForSnapshot(item.getCachedObject()));
+				}
+			}
+			OffHeapStore store = offHeapStore;
+			if(store != null){
+				for(Map.Entry<String,OffHeapStore.Entry> offHeapEntry : store.entries()){
+					OffHeapStore.Entry entry = offHeapEntry.getValue();
+					if(entry.hasExpired(now) || cache.containsKey(offHeapEntry.getKey())){
+						continue;
+					}
+					byte[] bytes = store.read(entry);
+					if(bytes == null){
+						continue;
+					}
+					if(snapshotCodec != codec){
+						bytes = encodeForSnapshot(codec.decode(bytes));
+					}
+					writer.append(offHeapEntry.getKey(), entry.timestamp, entry.expiry, bytes);
+				}
+			}
+			writer.commit();
+			log.info("Wrote " + writer.getNumRecords() + " entries of cache " + name + " to snapshot " + snapshotFile + " in " + (System.currentTimeMillis() - startTime) + "ms");
+		}
+		catch (IOException e) {
+			log.error("Unable to write snapshot " + snapshotFile + " of cache " + name, e);
+			writer.abort();
+		}
+		catch (RuntimeException e) {
+			log.error("Unable to write snapshot " + snapshotFile + " of cache " + name, e);
+			writer.abort();
+		}
+	}
+	
+	private byte[] encodeForSnapshot(T obj){
+		long startTime = System.nanoTime();
+		try {
+			return snapshotCodec.encode(obj);
+		}
+		finally {
+			serializationTime.add(System.nanoTime() - startTime);
+		}
+	}
+	
+	/**
+	 * Restores the snapshot, decoding the values on all available processors
+	 */
+	private void restoreSnapshot(){
+		if(!snapshotFile.exists()){
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		final List<CacheSnapshot.Record> records;
+		try {
+			records = CacheSnapshot.read(snapshotFile);
+		}
+		catch (IOException e) {
+			log.error("Unable to read snapshot " + snapshotFile + " of cache " + name, e);
+			return;
+		}
+		
+		int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), records.size() / 1000));
+		ExecutorService restoreExecutor = Executors.newFixedThreadPool(numThreads);
+		final LongAdder numRestored = new LongAdder();
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			int chunkSize = (records.size() + numThreads - 1) / numThreads;
+			for(int i=0; i<records.size(); i+=chunkSize){
+				final List<CacheSnapshot.Record> chunk = records.subList(i, Math.min(i + chunkSize, records.size()));
+				results.add(restoreExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for(CacheSnapshot.Record record : chunk){
+							if(record.expiry <= System.currentTimeMillis()){
+								continue;
+							}
+							T obj;
+							long decodeStartTime = System.nanoTime();
+							try {
+								obj = snapshotCodec.decode(record.readValue());
+							}
+							catch (RuntimeException e) {
+								log.warn("Unable to restore key " + record.key + " of cache " + name, e);
+								continue;
+							}
+							finally {
+								deserializationTime.add(System.nanoTime() - decodeStartTime);
+							}
+							putItem(record.key, CacheItem.fromWallClock(obj, record.timestamp, record.expiry));
+							numRestored.increment();
+						}
+					}
+				}));
+			}
+			for(Future<?> result : results){
+				result.get();
+			}
+			log.info("Restored " + numRestored.sum() + " of " + records.size() + " entries of cache " + name + " from snapshot " + snapshotFile + " in " + (System.currentTimeMillis() - startTime) + "ms");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while restoring snapshot " + snapshotFile + " of cache " + name);
+		}
+		catch (ExecutionException e) {
+			log.error("Unable to restore snapshot " + snapshotFile + " of cache " + name, e.getCause());
+		}
+		finally {
+			restoreExecutor.shutdownNow();
+		}
+		// the entries are now live in the cache, do not restore them again after a crash
+		if(!snapshotFile.delete()){
+			log.warn("Unable to delete snapshot " + snapshotFile + " of cache " + name);
+		}
+	}
+	
+	/**
+	 * Moves an entry from the off-heap tier back to the heap. Only the thread whose
+	 * conditional remove takes the entry out of the tier installs it, and only if the key has
+	 * not been put again meanwhile, so a newer or invalidated value is never overwritten.
+	 * 
+	 * @return the promoted item, the item that has since taken its place, or null if the key
+	 * is not in the off-heap tier
+	 */
+	private CacheItem<T> promote(String key, long now){
+		OffHeapStore store = offHeapStore;
+		OffHeapStore.Entry entry = store.getEntry(key);
+		if(entry == null){
+			return null;
+		}
+		byte[] bytes = null;
+		if(!entry.hasExpired(now)){
+			bytes = store.read(entry);
+		}
+		if(!store.remove(key, entry)){
+			// replaced, invalidated or promoted by another thread since it was read
+			return liveItem(key, now);
+		}
+		if(bytes == null){
+			return null;
+		}
+		T obj;
+		long startTime = System.nanoTime();
+		try {
+			obj = codec.decode(bytes);
+		}
+		catch (RuntimeException e) {
+			log.warn("Unable to deserialize key " + key + " of cache " + name + " from the off-heap tier", e);
+			return null;
+		}
+		finally {
+			deserializationTime.add(System.nanoTime() - startTime);
+		}
+		CacheItem<T> item = new CacheItem<T>(obj, entry.timestamp, entry.expiry, entry.writeNanos, entry.expiryNanos);
+		item.key = key;
+		item.graceNanos = staleGraceNanos;
+		if(isBounded()){
+			item.weight = weigh(key, obj);
+		}
+		if(cache.putIfAbsent(key, item) != null){
+			// a put won the race, and its value is newer
+			return liveItem(key, now);
+		}
+		pendingWrites.add(item);
+		performMaintenance(isBounded());
+		return item;
+	}
+	
+	private CacheItem<T> liveItem(String key, long now){
+		CacheItem<T> item = cache.get(key);
+		if((item == null) || item.hasExpired(now)){
+			return null;
+		}
+		return item;
+	}
+
+	public String getName() {
+		return name;
+	}
 
 	public long getDefaultLifespan() {
 		return defaultLifespan;
@@ -162,16 +1282,158 @@ public class SimpleInMemoryCache<T> implements Runnable {
 	public void setDefaultLifespan(long defaultLifespan) {
 		this.defaultLifespan = defaultLifespan;
 	}
+	
+	public long getRefreshAfterWrite() {
+		return TimeUnit.NANOSECONDS.toMillis(refreshAfterWriteNanos);
+	}
+	
+	/**
+	 * Sets the age in milliseconds after which get(key, loader) reloads an entry in the
+	 * background while still returning the cached value. Should be shorter than the lifespan of
+	 * the entries. 0 disables refreshing, which is the default. Refreshed entries are put with
+	 * the default lifespan.
+	 */
+	public void setRefreshAfterWrite(long refreshAfterWrite) {
+		this.refreshAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(refreshAfterWrite, 0L));
+	}
+	
+	public long getStaleGracePeriod() {
+		return TimeUnit.NANOSECONDS.toMillis(staleGraceNanos);
+	}
+	
+	/**
+	 * Sets how long in milliseconds an expired entry is kept so that get(key, loader) can still
+	 * serve it if reloading fails. 0 disables this, which is the default. Applies to entries put
+	 * after it is set.
+	 */
+	public void setStaleGracePeriod(long staleGracePeriod) {
+		this.staleGraceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(staleGracePeriod, 0L));
+	}
+	
+	/**
+	 * Sets the executor for background refreshes. Defaults to a daemon thread pool shared by all
+	 * caches.
+	 */
+	public void setRefreshExecutor(Executor refreshExecutor) {
+		if(refreshExecutor == null){
+			throw new IllegalArgumentException("Refresh executor must not be null");
+		}
+		this.refreshExecutor = refreshExecutor;
+	}
+	
+	/**
+	 * @return the maximum size or weight of the cache, or -1 if it is unbounded
+	 */
+	public long getMaximum() {
+		return maximum;
+	}
+	
+	/**
+	 * @return the total weight of the entries tracked by the eviction policy. This is the entry
+	 * count if the cache is bounded by size, and 0 if the cache is unbounded.
+	 */
+	public long getWeightedSize() {
+		evictionLock.lock();
+		try {
+			return weightedSize;
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
 
 	public long getNumGetRequests() {
-		return numGetRequests;
+		return numGetRequests.sum();
 	}
 
 	public long getNumCacheHits() {
-		return numCacheHits;
+		return numCacheHits.sum();
 	}
 
 	public long getNumCacheMisses() {
-		return numCacheMisses;
+		return numCacheMisses.sum();
+	}
+	
+	public long getNumEvictions() {
+		return numEvictions.sum();
+	}
+	
+	public long getNumLoadSuccesses() {
+		return numLoadSuccesses.sum();
+	}
+	
+	public long getNumLoadFailures() {
+		return numLoadFailures.sum();
+	}
+	
+	/**
+	 * @return total time spent in loaders, in nanoseconds
+	 */
+	public long getTotalLoadTime() {
+		return totalLoadTime.sum();
+	}
+	
+	/**
+	 * @return average time per load in nanoseconds, or 0 if nothing has been loaded
+	 */
+	public double getAverageLoadPenalty() {
+		long loads = numLoadSuccesses.sum() + numLoadFailures.sum();
+		if(loads == 0){
+			return 0.0d;
+		}
+		return (double) totalLoadTime.sum() / loads;
+	}
+	
+	/**
+	 * @return number of get requests served from the off-heap tier. These are included in the hits.
+	 */
+	public long getNumOffHeapHits() {
+		return numOffHeapHits.sum();
+	}
+	
+	/**
+	 * @return bytes of live entries in the off-heap tier
+	 */
+	public long getOffHeapBytes() {
+		OffHeapStore store = offHeapStore;
+		return (store == null) ? 0 : store.getLiveBytes();
+	}
+	
+	/**
+	 * @return bytes of direct memory reserved for the off-heap tier
+	 */
+	public long getOffHeapCapacity() {
+		OffHeapStore store = offHeapStore;
+		return (store == null) ? 0 : store.getCapacity();
+	}
+	
+	public long getNumOffHeapEvictions() {
+		OffHeapStore store = offHeapStore;
+		return (store == null) ? 0 : store.getNumEvictions();
+	}
+	
+	/**
+	 * @return total time spent serializing values for the off-heap tier, in nanoseconds
+	 */
+	public long getSerializationTime() {
+		return serializationTime.sum();
+	}
+	
+	/**
+	 * @return total time spent deserializing values from the off-heap tier, in nanoseconds
+	 */
+	public long getDeserializationTime() {
+		return deserializationTime.sum();
+	}
+	
+	/**
+	 * @return ratio of get requests that were hits, or 1.0 if there have been no requests
+	 */
+	public double getHitRatio() {
+		long requests = numGetRequests.sum();
+		if(requests == 0){
+			return 1.0d;
+		}
+		return (double) numCacheHits.sum() / requests;
 	}
 }
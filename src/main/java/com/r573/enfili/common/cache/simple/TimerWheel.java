@@ -0,0 +1,157 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+/**
+ * Hierarchical timer wheel for expiring cache items in O(1) amortized time, instead of
+ * periodically scanning every entry.
+ * 
+ * Each level is an array of buckets covering a fixed span of time (about 1 second, 1 minute,
+ * 1 hour and 1 day per bucket, plus a single overflow bucket). An item is placed in the finest
+ * level whose range covers its expiry. As time advances, the buckets that have been passed are
+ * emptied: items that are due are expired and the rest cascade down into finer buckets.
+ * 
+ * Items are linked into buckets through the timer links on CacheItem, so scheduling does not
+ * allocate. Each bucket is a circular list with a sentinel item as its head.
+ * 
+ * Not thread safe. Guarded by the owning cache's eviction lock.
+ * 
+ * Adapted from the TimerWheel of Caffeine (https://github.com/ben-manes/caffeine), Copyright
+ * Ben Manes, licensed under the Apache License, Version 2.0.
+ */
+class TimerWheel<T> {
+	private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+	private static final long[] SPANS = {
+		1L << 30, // 1.07s
+		1L << 36, // 1.14m
+		1L << 42, // 1.22h
+		1L << 47, // 1.63d
+		1L << 49, // 6.5d
+		1L << 49, // 6.5d
+	};
+	private static final long[] SHIFT = {
+		Long.numberOfTrailingZeros(SPANS[0]),
+		Long.numberOfTrailingZeros(SPANS[1]),
+		Long.numberOfTrailingZeros(SPANS[2]),
+		Long.numberOfTrailingZeros(SPANS[3]),
+		Long.numberOfTrailingZeros(SPANS[4]),
+	};
+	
+	private final SimpleInMemoryCache<T> cache;
+	private final CacheItem<T>[][] wheel;
+	private long nanos;
+	
+	@SuppressWarnings("unchecked")
+	TimerWheel(SimpleInMemoryCache<T> cache, long nowNanos){
+		this.cache = cache;
+		this.nanos = nowNanos;
+		wheel = (CacheItem<T>[][]) new CacheItem<?>[BUCKETS.length][];
+		for(int i=0; i<wheel.length; i++){
+			wheel[i] = (CacheItem<T>[]) new CacheItem<?>[BUCKETS[i]];
+			for(int j=0; j<wheel[i].length; j++){
+				CacheItem<T> sentinel = new CacheItem<T>(null, 0L);
+				sentinel.prevInTimer = sentinel;
+				sentinel.nextInTimer = sentinel;
+				wheel[i][j] = sentinel;
+			}
+		}
+	}
+	
+	/**
+	 * Advances the wheel to the current time, expiring the items that are due
+	 */
+	void advance(long currentTimeNanos){
+		long previousTimeNanos = nanos;
+		nanos = currentTimeNanos;
+		
+		// if nanoTime wrapped then temporarily shift the clock for a positive comparison
+		if((previousTimeNanos < 0) && (currentTimeNanos > 0)){
+			previousTimeNanos += Long.MAX_VALUE;
+			currentTimeNanos += Long.MAX_VALUE;
+		}
+		for(int i=0; i<SHIFT.length; i++){
+			long previousTicks = (previousTimeNanos >>> SHIFT[i]);
+			long currentTicks = (currentTimeNanos >>> SHIFT[i]);
+			long delta = currentTicks - previousTicks;
+			if(delta <= 0L){
+				break;
+			}
+			expire(i, previousTicks, delta);
+		}
+	}
+	
+	private void expire(int level, long previousTicks, long delta){
+		CacheItem<T>[] buckets = wheel[level];
+		int mask = buckets.length - 1;
+		int steps = (int) Math.min(1 + delta, buckets.length);
+		int start = (int) (previousTicks & mask);
+		int end = start + steps;
+		for(int i=start; i<end; i++){
+			CacheItem<T> sentinel = buckets[i & mask];
+			CacheItem<T> item = sentinel.nextInTimer;
+			sentinel.prevInTimer = sentinel;
+			sentinel.nextInTimer = sentinel;
+			while(item != sentinel){
+				CacheItem<T> next = item.nextInTimer;
+				item.prevInTimer = null;
+				item.nextInTimer = null;
+				if(((item.getTimerNanos() - nanos) > 0) || !cache.expire(item)){
+					// not yet due, cascade to a finer bucket
+					schedule(item);
+				}
+				item = next;
+			}
+		}
+	}
+	
+	void schedule(CacheItem<T> item){
+		long time = item.getTimerNanos();
+		if((time - nanos) < 0){
+			// already due, place it in the current bucket so the next advance expires it
+			time = nanos;
+		}
+		CacheItem<T> sentinel = findBucket(time);
+		item.prevInTimer = sentinel.prevInTimer;
+		item.nextInTimer = sentinel;
+		sentinel.prevInTimer.nextInTimer = item;
+		sentinel.prevInTimer = item;
+	}
+	
+	void deschedule(CacheItem<T> item){
+		if(item.nextInTimer == null){
+			return;
+		}
+		item.nextInTimer.prevInTimer = item.prevInTimer;
+		item.prevInTimer.nextInTimer = item.nextInTimer;
+		item.prevInTimer = null;
+		item.nextInTimer = null;
+	}
+	
+	private CacheItem<T> findBucket(long time){
+		long duration = time - nanos;
+		int length = wheel.length - 1;
+		for(int i=0; i<length; i++){
+			if(duration < SPANS[i + 1]){
+				long ticks = (time >>> SHIFT[i]);
+				int index = (int) (ticks & (wheel[i].length - 1));
+				return wheel[i][index];
+			}
+		}
+		return wheel[length][0];
+	}
+}
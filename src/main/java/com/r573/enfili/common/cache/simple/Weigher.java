@@ -0,0 +1,34 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.cache.simple;
+
+/**
+ * Calculates the weight of a cache entry, for caches bounded by total weight rather than entry
+ * count (e.g. approximate size in bytes of the cached payload).
+ * 
+ * The weight of an entry is calculated once when it is put into the cache.
+ * 
+ * @author ryanho
+ *
+ */
+public interface Weigher<T> {
+	/**
+	 * @return the weight of the entry, must not be negative
+	 */
+	public int weigh(String key, T value);
+}
@@ -0,0 +1,177 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.doc.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.ObjectReader;
+
+/**
+ * Iterates over the elements of a JSON array, parsing one element at a time from Jackson's
+ * token stream, so that only the current element is held in memory however large the array.
+ * 
+ * The array can be nested inside objects, located by a path of field names such as
+ * "responseData.array". If the path does not lead to an array, there are no elements.
+ * 
+ * The underlying parser, and the stream it reads from, is closed when the last element has
+ * been read, when parsing fails, or when close is called. Close the iterator if the elements
+ * are not all read.
+ * 
+ * Malformed JSON is reported as a JsonProcessingException, and failures reading the stream as
+ * an UncheckedIOException.
+ */
+public class JsonArrayIterator<T> implements Iterator<T>, Closeable {
+	private final JsonParser parser;
+	private final ObjectReader reader;
+	private boolean tokenPending;
+	private boolean closed;
+	
+	/**
+	 * @param parser positioned on the first token of the value that the path starts from
+	 */
+	JsonArrayIterator(JsonParser parser, ObjectReader reader, String path) throws IOException {
+		this.parser = parser;
+		this.reader = reader;
+		boolean found;
+		try {
+			found = seek(path);
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		if(!found){
+			close();
+		}
+	}
+	
+	private boolean seek(String path) throws IOException {
+		if((path != null) && (path.length() > 0)){
+			for(String field : path.split("\\.")){
+				if(!seekField(field)){
+					return false;
+				}
+			}
+		}
+		return parser.getCurrentToken() == JsonToken.START_ARRAY;
+	}
+	
+	private boolean seekField(String field) throws IOException {
+		if(parser.getCurrentToken() != JsonToken.START_OBJECT){
+			return false;
+		}
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			if(name.equals(field)){
+				return true;
+			}
+			parser.skipChildren();
+		}
+		return false;
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if(closed){
+			return false;
+		}
+		if(tokenPending){
+			return true;
+		}
+		try {
+			if(parser.nextToken() == JsonToken.END_ARRAY){
+				close();
+				return false;
+			}
+			tokenPending = true;
+			return true;
+		} catch (JsonParseException e) {
+			close();
+			throw new JsonProcessingException(e);
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	@Override
+	public T next() {
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		tokenPending = false;
+		try {
+			return reader.readValue(parser);
+		} catch (JsonParseException e) {
+			close();
+			throw new JsonProcessingException(e);
+		} catch (JsonMappingException e) {
+			close();
+			throw new JsonProcessingException(e);
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * @return the remaining elements as a sequential stream, which closes this iterator when closed
+	 */
+	public Stream<T> stream() {
+		Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false);
+		return stream.onClose(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+	
+	@Override
+	public void close() {
+		if(closed){
+			return;
+		}
+		closed = true;
+		try {
+			parser.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -15,27 +15,133 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.r573.enfili.common.doc.json;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 import org.codehaus.jackson.map.ObjectWriter;
 import org.codehaus.jackson.type.JavaType;
 import org.codehaus.jackson.type.TypeReference;
 
+/**
+ * JSON conversions using one shared ObjectMapper, so that Jackson's serializer and
+ * deserializer caches are built once rather than on every call. The ObjectReader and
+ * ObjectWriter for each type are cached as well. All of these are thread safe once configured.
+ * 
+ * Custom configuration (features, modules, date formats) is registered once at startup with
+ * configure, which builds a new mapper and discards the cached readers and writers.
+ * 
+ * The byte[], InputStream, OutputStream and Writer variants go straight through Jackson's
+ * parser and generator, without building an intermediate String of the whole document.
+ * 
+ * The toSmile and fromSmile variants use the binary Smile encoding of the same data model,
+ * which is smaller and cheaper to parse than JSON text. They need jackson-smile on the
+ * classpath; without it isSmileAvailable is false and they throw IllegalStateException.
+ */
 public class JsonHelper {
-
+	private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
+	};
+	private static final String SMILE_FACTORY_CLASS = "org.codehaus.jackson.smile.SmileFactory";
+	
+	private static volatile Mappers mappers = new Mappers(new ObjectMapper());
+	private static volatile Mappers smileMappers = createSmileMappers(null); // null without jackson-smile
+	
+	/**
+	 * Customizes the shared ObjectMapper
+	 */
+	public interface Configurer {
+		public void configure(ObjectMapper mapper);
+	}
+	
+	/**
+	 * Replaces the shared mappers, JSON and Smile, with new ones customized by the configurer.
+	 * Meant to be called once at startup; calls in flight keep using the previous mappers.
+	 */
+	public static synchronized void configure(Configurer configurer) {
+		ObjectMapper mapper = new ObjectMapper();
+		configurer.configure(mapper);
+		mappers = new Mappers(mapper);
+		smileMappers = createSmileMappers(configurer);
+	}
+	
+	private static Mappers createSmileMappers(Configurer configurer) {
+		JsonFactory smileFactory;
+		try {
+			// loaded by name so that jackson-smile stays an optional dependency
+			smileFactory = (JsonFactory) Class.forName(SMILE_FACTORY_CLASS).getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			// no default constructor, not accessible, or the constructor threw
+			throw new RuntimeException(e);
+		}
+		ObjectMapper mapper = new ObjectMapper(smileFactory);
+		if(configurer != null){
+			configurer.configure(mapper);
+		}
+		return new Mappers(mapper);
+	}
+	
+	public static boolean isSmileAvailable() {
+		return smileMappers != null;
+	}
+	
+	/**
+	 * @return the shared Smile mapper, which must not be reconfigured. Use configure instead.
+	 */
+	public static ObjectMapper getSmileMapper() {
+		return smile().mapper;
+	}
+	
+	private static Mappers smile() {
+		Mappers smile = smileMappers;
+		if(smile == null){
+			throw new IllegalStateException("Smile encoding needs jackson-smile on the classpath");
+		}
+		return smile;
+	}
+	
+	/**
+	 * @return the shared mapper, which must not be reconfigured. Use configure instead.
+	 */
+	public static ObjectMapper getObjectMapper() {
+		return mappers.mapper;
+	}
+	
+	public static JavaType constructType(Class<?> objClass) {
+		return mappers.mapper.getTypeFactory().constructType(objClass);
+	}
+	
+	public static JavaType constructType(Type type) {
+		return mappers.mapper.getTypeFactory().constructType(type);
+	}
+	
+	public static JavaType constructParametricType(Class<?> parametrized, Class<?>... parameterClasses) {
+		return mappers.mapper.getTypeFactory().constructParametricType(parametrized, parameterClasses);
+	}
+	
 	public static <T> T fromJson(String jsonStr, Class<T> objClass) {
-		ObjectMapper jsonMapper = new ObjectMapper();
-		JavaType javaType = jsonMapper.getTypeFactory().constructType(objClass);
+		return fromJson(jsonStr, mappers.typeOf(objClass));
+	}
+	public static <T> T fromJson(String jsonStr, JavaType javaType) {
 		try {
-			return jsonMapper.readValue(jsonStr, javaType);
+			return mappers.reader(javaType).readValue(jsonStr);
 		} catch (JsonParseException e) {
 			throw new JsonProcessingException(e, jsonStr);
 		} catch (JsonMappingException e) {
@@ -45,36 +151,126 @@ public class JsonHelper {
 			throw new RuntimeException(e);
 		}
 	}
-	public static <T> T fromJson(String jsonStr, JavaType javaType) {
-		ObjectMapper jsonMapper = new ObjectMapper();
+	
+	public static <T> T fromJson(byte[] json, Class<T> objClass) {
+		return fromJson(json, mappers.typeOf(objClass));
+	}
+	public static <T> T fromJson(byte[] json, JavaType javaType) {
+		return fromJson(json, 0, json.length, javaType);
+	}
+	
+	/**
+	 * Parses length bytes of the array starting at offset, such as the data of a received packet
+	 */
+	public static <T> T fromJson(byte[] json, int offset, int length, Class<T> objClass) {
+		return fromJson(json, offset, length, mappers.typeOf(objClass));
+	}
+	public static <T> T fromJson(byte[] json, int offset, int length, JavaType javaType) {
 		try {
-			return jsonMapper.readValue(jsonStr, javaType);
+			return mappers.reader(javaType).readValue(json, offset, length);
 		} catch (JsonParseException e) {
-			throw new JsonProcessingException(e, jsonStr);
+			throw new JsonProcessingException(e, toString(json, offset, length));
 		} catch (JsonMappingException e) {
-			throw new JsonProcessingException(e, jsonStr);
+			throw new JsonProcessingException(e, toString(json, offset, length));
 		} catch (IOException e) {
-			// this is impossible. We are parsing a string, not an InputStream.
+			// this is impossible. We are parsing a byte array, not an InputStream.
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Parses the stream, which is closed afterwards
+	 * 
+	 * @throws IOException if reading the stream fails. Malformed JSON is reported as a
+	 * JsonProcessingException, as for the other variants.
+	 */
+	public static <T> T fromJson(InputStream in, Class<T> objClass) throws IOException {
+		return fromJson(in, mappers.typeOf(objClass));
+	}
+	public static <T> T fromJson(InputStream in, JavaType javaType) throws IOException {
+		try {
+			return mappers.reader(javaType).readValue(in);
+		} catch (JsonParseException e) {
+			throw new JsonProcessingException(e);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e);
+		}
+	}
+	
+	public static <T> T fromSmile(byte[] smile, Class<T> objClass) {
+		return fromSmile(smile, mappers.typeOf(objClass));
+	}
+	public static <T> T fromSmile(byte[] smile, JavaType javaType) {
+		try {
+			return smile().reader(javaType).readValue(smile);
+		} catch (JsonParseException e) {
+			throw new JsonProcessingException(e);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e);
+		} catch (IOException e) {
+			// this is impossible. We are parsing a byte array, not an InputStream.
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Parses the Smile encoded stream, which is closed afterwards
+	 */
+	public static <T> T fromSmile(InputStream in, Class<T> objClass) throws IOException {
+		return fromSmile(in, mappers.typeOf(objClass));
+	}
+	public static <T> T fromSmile(InputStream in, JavaType javaType) throws IOException {
+		try {
+			return smile().reader(javaType).readValue(in);
+		} catch (JsonParseException e) {
+			throw new JsonProcessingException(e);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e);
+		}
+	}
+	
+	/**
+	 * Iterates over a JSON array, one element at a time, without reading the whole array into
+	 * memory. The stream is closed when iteration ends.
+	 * 
+	 * @param path dot-separated field names leading from the root object to the array, such as
+	 * "responseData.array", or null if the root is the array
+	 */
+	public static <T> JsonArrayIterator<T> iterateArray(InputStream in, Class<T> elementClass, String path) throws IOException {
+		JsonParser parser = mappers.mapper.getJsonFactory().createJsonParser(in);
+		try {
+			parser.nextToken();
+		} catch (JsonParseException e) {
+			parser.close();
+			throw new JsonProcessingException(e);
+		}
+		return iterateArray(parser, elementClass, path);
+	}
+	
+	/**
+	 * Iterates over a JSON array read from the parser, which is closed when iteration ends
+	 * 
+	 * @param parser positioned on the first token of the value the path starts from
+	 */
+	public static <T> JsonArrayIterator<T> iterateArray(JsonParser parser, Class<T> elementClass, String path) throws IOException {
+		try {
+			return new JsonArrayIterator<T>(parser, mappers.reader(mappers.typeOf(elementClass)), path);
+		} catch (JsonParseException e) {
+			throw new JsonProcessingException(e);
+		}
+	}
+	
 	public static Map<String, Object> convertToMap(Object obj) {
-		ObjectMapper jsonMapper = new ObjectMapper();
-		TypeReference<Map<String, Object>> typeRef = new TypeReference<Map<String, Object>>() {
-		};
-		return jsonMapper.convertValue(obj, typeRef);
+		return mappers.mapper.convertValue(obj, MAP_TYPE);
 	}
 	
 	public static String toJson(Object obj, boolean prettyPrint) {
 		try {
 			if(prettyPrint){
-				ObjectWriter jsonWriter = (new ObjectMapper()).writerWithDefaultPrettyPrinter();
-				return jsonWriter.writeValueAsString(obj);
+				return mappers.prettyWriter.writeValueAsString(obj);
 			}
 			else{
-				ObjectMapper jsonMapper = new ObjectMapper();
-				return jsonMapper.writeValueAsString(obj);
+				return mappers.writer(obj).writeValueAsString(obj);
 			}
 		} catch (JsonMappingException e) {
 			throw new JsonProcessingException(e, obj);
@@ -87,5 +283,143 @@ public class JsonHelper {
 	}
 	public static String toJson(Object obj) {
 		return toJson(obj, false);
-	}	
+	}
+	
+	/**
+	 * @return the object as UTF-8 JSON
+	 */
+	public static byte[] toJsonBytes(Object obj) {
+		try {
+			return mappers.writer(obj).writeValueAsBytes(obj);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e, obj);
+		} catch (JsonGenerationException e) {
+			throw new JsonProcessingException(e, obj);
+		} catch (IOException e) {
+			// this is impossible. We are writing a byte array, not an OutputStream.
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Writes the object as UTF-8 JSON. The stream is flushed but left open.
+	 */
+	public static void toJson(Object obj, OutputStream out) throws IOException {
+		Mappers json = mappers;
+		write(json, obj, json.mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8));
+	}
+	
+	/**
+	 * Writes the object as JSON. The writer is flushed but left open.
+	 */
+	public static void toJson(Object obj, Writer writer) throws IOException {
+		Mappers json = mappers;
+		write(json, obj, json.mapper.getJsonFactory().createJsonGenerator(writer));
+	}
+	
+	/**
+	 * Writes the object as the next value of a document being generated piece by piece. The
+	 * generator is left open.
+	 */
+	public static void toJson(Object obj, JsonGenerator generator) throws IOException {
+		try {
+			mappers.writer(obj).writeValue(generator, obj);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e, obj);
+		} catch (JsonGenerationException e) {
+			throw new JsonProcessingException(e, obj);
+		}
+	}
+	
+	public static byte[] toSmile(Object obj) {
+		try {
+			return smile().writer(obj).writeValueAsBytes(obj);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e, obj);
+		} catch (JsonGenerationException e) {
+			throw new JsonProcessingException(e, obj);
+		} catch (IOException e) {
+			// this is impossible. We are writing a byte array, not an OutputStream.
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Writes the object Smile encoded. The stream is flushed but left open.
+	 */
+	public static void toSmile(Object obj, OutputStream out) throws IOException {
+		Mappers smile = smile();
+		write(smile, obj, smile.mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8));
+	}
+	
+	private static void write(Mappers target, Object obj, JsonGenerator generator) throws IOException {
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		try {
+			target.writer(obj).writeValue(generator, obj);
+		} catch (JsonMappingException e) {
+			throw new JsonProcessingException(e, obj);
+		} catch (JsonGenerationException e) {
+			throw new JsonProcessingException(e, obj);
+		} finally {
+			// flushes and releases the generator's buffers, without closing the target
+			generator.close();
+		}
+	}
+	
+	private static String toString(byte[] json, int offset, int length) {
+		try {
+			return new String(json, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// this is impossible. UTF-8 is always supported.
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * A configured mapper and the readers and writers derived from it, replaced as a whole by configure
+	 */
+	private static class Mappers {
+		private final ObjectMapper mapper;
+		private final ObjectWriter defaultWriter;
+		private final ObjectWriter prettyWriter;
+		private final ConcurrentHashMap<Class<?>,JavaType> types = new ConcurrentHashMap<Class<?>, JavaType>();
+		private final ConcurrentHashMap<JavaType,ObjectReader> readers = new ConcurrentHashMap<JavaType, ObjectReader>();
+		private final ConcurrentHashMap<Class<?>,ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+		
+		Mappers(ObjectMapper mapper) {
+			this.mapper = mapper;
+			defaultWriter = mapper.writer();
+			prettyWriter = mapper.writerWithDefaultPrettyPrinter();
+		}
+		
+		JavaType typeOf(Class<?> objClass) {
+			JavaType javaType = types.get(objClass);
+			if(javaType == null){
+				javaType = mapper.getTypeFactory().constructType(objClass);
+				types.put(objClass, javaType);
+			}
+			return javaType;
+		}
+		
+		ObjectReader reader(JavaType javaType) {
+			ObjectReader reader = readers.get(javaType);
+			if(reader == null){
+				reader = mapper.reader(javaType);
+				readers.put(javaType, reader);
+			}
+			return reader;
+		}
+		
+		ObjectWriter writer(Object obj) {
+			if(obj == null){
+				return defaultWriter;
+			}
+			ObjectWriter writer = writers.get(obj.getClass());
+			if(writer == null){
+				writer = mapper.writerWithType(obj.getClass());
+				writers.put(obj.getClass(), writer);
+			}
+			return writer;
+		}
+	}
 }
@@ -29,6 +29,10 @@ public class JsonProcessingException extends RuntimeException {
 		super(t);
 		log.error(this.getClass().getName() + " while parsing document\n" + jsonDocument);
 	}
+	public JsonProcessingException(Throwable t) {
+		super(t);
+		log.error(this.getClass().getName() + " while parsing stream: " + t.getMessage());
+	}
 	public JsonProcessingException(Throwable t, Object jsonObject) {
 		super(t);
 		String objDesc = "null";
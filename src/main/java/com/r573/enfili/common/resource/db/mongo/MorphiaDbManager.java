@@ -244,6 +244,17 @@ public class MorphiaDbManager {
 		Query<T> query = ds.find(clazz);
 		return find(query);
 	}	
+	/**
+	 * Iterates over the results of the query as they are fetched, without holding them all in
+	 * memory as find does. Close the iterator if it is not read to the end.
+	 */
+	public <T extends BaseMongoObject> MorphiaResultIterator<T> iterate(Query<T> query){
+		return new MorphiaResultIterator<T>(query.fetch().iterator());
+	}
+	public <T extends BaseMongoObject> MorphiaResultIterator<T> iterateAll(Class<T> clazz){
+		log.debug("iterateAll for type "+clazz.getName());
+		return iterate(ds.find(clazz));
+	}
 	public <T extends BaseMongoObject> List<T> findAllAndRetrieveField(Class<T> clazz, String field){
 		log.debug("findAll for type "+clazz.getName() + " retrieve field " + field);
 		Query<T> query = ds.find(clazz).retrievedFields(true, field);
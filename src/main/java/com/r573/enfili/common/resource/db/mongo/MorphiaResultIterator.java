@@ -0,0 +1,71 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.resource.db.mongo;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.mongodb.morphia.query.MorphiaIterator;
+
+/**
+ * Iterates over query results as they are fetched from the database, in batches of the
+ * cursor, setting the id of each object as MorphiaDbManager does for lists. The cursor is
+ * closed at the end of the results; close the iterator if it is abandoned early.
+ */
+public class MorphiaResultIterator<T extends BaseMongoObject> implements Iterator<T>, Closeable {
+	private final Iterator<T> results;
+	private boolean closed;
+	
+	MorphiaResultIterator(Iterator<T> results) {
+		this.results = results;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(closed){
+			return false;
+		}
+		if(!results.hasNext()){
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		T obj = results.next();
+		obj.setId(obj.getObjectId().toString());
+		return obj;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		if(!closed){
+			closed = true;
+			if(results instanceof MorphiaIterator){
+				((MorphiaIterator<?,?>) results).close();
+			}
+		}
+	}
+}
@@ -21,6 +21,7 @@ import org.apache.commons.codec.binary.Base64;
 
 import com.r573.enfili.common.resource.rest.ResponseWrapper;
 import com.r573.enfili.common.resource.rest.RestClient;
+import com.r573.enfili.common.resource.rest.RestConnectionPool;
 import com.r573.enfili.common.singleton.SingletonManager;
 
 public class AppStoreManager {
@@ -38,18 +39,14 @@ public class AppStoreManager {
 	}
 	
 	private boolean useSandbox;
+	private volatile RestClient restClient;
 	private AppStoreManager(boolean useSandbox){
-		this.useSandbox = useSandbox;
+		setUseSandbox(useSandbox);
 	}
 	
 	public VerifyReceiptResponse verifyReceipt(String receiptId) throws AppStoreException {
 		try {
 			String receiptEncoded = Base64.encodeBase64String(receiptId.getBytes("UTF-8"));
-			String urlToUse = ITUNES_API_BASEURL;
-			if(useSandbox) {
-				urlToUse = ITUNES_API_SANDBOX_BASEURL;
-			}
-			RestClient restClient = new RestClient(urlToUse);
 			VerifyReceiptRequest request = new VerifyReceiptRequest();
 			request.setReceiptData(receiptEncoded);
 			ResponseWrapper<VerifyReceiptResponse> result = restClient.post("/verifyReceipt", request, VerifyReceiptResponse.class);
@@ -66,5 +63,11 @@ public class AppStoreManager {
 
 	public void setUseSandbox(boolean useSandbox) {
 		this.useSandbox = useSandbox;
+		String urlToUse = ITUNES_API_BASEURL;
+		if(useSandbox) {
+			urlToUse = ITUNES_API_SANDBOX_BASEURL;
+		}
+		// reused for every receipt, so that verifications share kept-alive connections
+		restClient = new RestClient(urlToUse, RestConnectionPool.getDefault());
 	}
 }
@@ -0,0 +1,163 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.resource.rest;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.NewCookie;
+
+/**
+ * The cookies of a client session, safe to share between any number of request threads.
+ * 
+ * The cookies are held in an immutable snapshot together with the Cookie header built from
+ * them. Requests only read the current snapshot, so they never lock or rebuild the header.
+ * Responses setting cookies copy the snapshot, and only when a cookie actually changes.
+ * Cookies are dropped when their max-age runs out, or when a response sets a max-age of 0.
+ * 
+ * @author ryanho
+ *
+ */
+public class CookieStore {
+	private static final long NEVER = Long.MAX_VALUE;
+	
+	private volatile Snapshot snapshot = new Snapshot(Collections.<String,StoredCookie>emptyMap());
+	
+	/**
+	 * Stores the cookies set by a response
+	 */
+	public void update(List<NewCookie> newCookies) {
+		if(newCookies.isEmpty()){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Map<String,StoredCookie> current = snapshot.cookies;
+			Map<String,StoredCookie> updated = null;
+			for(NewCookie newCookie : newCookies){
+				StoredCookie existing = current.get(newCookie.getName());
+				if(newCookie.getMaxAge() == 0){
+					if(existing != null){
+						updated = copyOnce(current, updated);
+						updated.remove(newCookie.getName());
+					}
+				}
+				else if((existing == null) || !existing.value.equals(newCookie.getValue()) || (newCookie.getMaxAge() > 0)){
+					long expiry = (newCookie.getMaxAge() > 0) ? now + (newCookie.getMaxAge() * 1000L) : NEVER;
+					updated = copyOnce(current, updated);
+					updated.put(newCookie.getName(), new StoredCookie(newCookie.getValue(), expiry));
+				}
+			}
+			if(updated != null){
+				snapshot = new Snapshot(removeExpired(updated, now));
+			}
+		}
+	}
+	
+	/**
+	 * @return the value for the Cookie request header, or null if there are no cookies
+	 */
+	public String getHeader() {
+		Snapshot current = snapshot;
+		if(current.nextExpiry <= System.currentTimeMillis()){
+			current = expire();
+		}
+		return current.header;
+	}
+	
+	/**
+	 * @return the value of the named cookie, or null if it is not set
+	 */
+	public String get(String name) {
+		StoredCookie cookie = snapshot.cookies.get(name);
+		if((cookie == null) || (cookie.expiry <= System.currentTimeMillis())){
+			return null;
+		}
+		return cookie.value;
+	}
+	
+	public int size() {
+		return snapshot.cookies.size();
+	}
+	
+	public synchronized void clear() {
+		snapshot = new Snapshot(Collections.<String,StoredCookie>emptyMap());
+	}
+	
+	private synchronized Snapshot expire() {
+		long now = System.currentTimeMillis();
+		if(snapshot.nextExpiry <= now){
+			snapshot = new Snapshot(removeExpired(new LinkedHashMap<String, StoredCookie>(snapshot.cookies), now));
+		}
+		return snapshot;
+	}
+	
+	private static Map<String,StoredCookie> copyOnce(Map<String,StoredCookie> current, Map<String,StoredCookie> updated) {
+		if(updated != null){
+			return updated;
+		}
+		return new LinkedHashMap<String, StoredCookie>(current);
+	}
+	
+	private static Map<String,StoredCookie> removeExpired(Map<String,StoredCookie> cookies, long now) {
+		Iterator<StoredCookie> iterator = cookies.values().iterator();
+		while(iterator.hasNext()){
+			if(iterator.next().expiry <= now){
+				iterator.remove();
+			}
+		}
+		return cookies;
+	}
+	
+	private static class StoredCookie {
+		private final String value;
+		private final long expiry;
+		
+		StoredCookie(String value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+	
+	/**
+	 * Immutable once published
+	 */
+	private static class Snapshot {
+		private final Map<String,StoredCookie> cookies;
+		private final String header;
+		private final long nextExpiry;
+		
+		Snapshot(Map<String,StoredCookie> cookies) {
+			this.cookies = cookies;
+			long earliest = NEVER;
+			StringBuilder headerBuilder = new StringBuilder();
+			for(Map.Entry<String,StoredCookie> cookie : cookies.entrySet()){
+				if(headerBuilder.length() > 0){
+					headerBuilder.append("; ");
+				}
+				headerBuilder.append(cookie.getKey()).append('=').append(cookie.getValue().value);
+				earliest = Math.min(earliest, cookie.getValue().expiry);
+			}
+			header = (headerBuilder.length() > 0) ? headerBuilder.toString() : null;
+			nextExpiry = earliest;
+		}
+	}
+}
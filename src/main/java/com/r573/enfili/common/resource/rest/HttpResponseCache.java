@@ -0,0 +1,249 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.resource.rest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.r573.enfili.common.cache.simple.SimpleInMemoryCache;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+
+/**
+ * A cache of decoded GET responses for RestClient and WsRestClient, keyed by URL, query
+ * parameters and the class decoded into.
+ * 
+ * A response is fresh for the max-age of its Cache-Control header, and a fresh entry is
+ * returned without a request. Once it is stale, the request carries If-None-Match and
+ * If-Modified-Since from the entry's ETag and Last-Modified, and a 304 Not Modified reuses
+ * the cached value without downloading or parsing the body again. Responses with no-store or
+ * private, and responses with neither a max-age nor a validator, are not cached, since one
+ * cache may be shared by several clients. Entries are kept apart by client kind and cookies.
+ * 
+ * Cached values are shared between callers, so they must not be modified.
+ */
+public class HttpResponseCache {
+	private static final long DEFAULT_RETENTION = 60L * 60000L; // keep validators for an hour
+	
+	private final SimpleInMemoryCache<Entry> cache;
+	private volatile long retention = DEFAULT_RETENTION;
+	
+	private final LongAdder numRequests = new LongAdder();
+	private final LongAdder numFreshHits = new LongAdder();
+	private final LongAdder numNotModified = new LongAdder();
+	
+	/**
+	 * A cached response
+	 */
+	public static class Entry {
+		private final Object value;
+		private final String etag;
+		private final String lastModified;
+		private volatile long freshUntil;
+		
+		Entry(Object value, String etag, String lastModified, long freshUntil) {
+			this.value = value;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.freshUntil = freshUntil;
+		}
+		
+		public Object getValue() {
+			return value;
+		}
+		public String getEtag() {
+			return etag;
+		}
+		public String getLastModified() {
+			return lastModified;
+		}
+		public boolean isFresh() {
+			return System.currentTimeMillis() < freshUntil;
+		}
+	}
+	
+	/**
+	 * Creates and starts a cache holding at most maximumSize responses
+	 */
+	public HttpResponseCache(String name, long maximumSize) {
+		cache = new SimpleInMemoryCache<Entry>(name, maximumSize);
+		cache.start();
+	}
+	
+	/**
+	 * @param clientKind the kind of client, whose cached values are of its own wrapper type
+	 * @param session the Cookie header sent with the request, or null
+	 * @return the cache key of a GET of the url, decoded into clazz. Clients of different kinds,
+	 * or with different cookies, never share an entry.
+	 */
+	public static String key(String clientKind, String session, String url, Map<String,String> queryParams, Class<?> clazz) {
+		StringBuilder key = new StringBuilder(clientKind).append(' ').append(url);
+		// sorted, so that the same parameters in any order share an entry
+		char separator = '?';
+		for(Map.Entry<String,String> param : new TreeMap<String,String>(queryParams).entrySet()){
+			key.append(separator).append(param.getKey()).append('=').append(param.getValue());
+			separator = '&';
+		}
+		key.append('#').append((clazz == null) ? "" : clazz.getName());
+		if(session != null){
+			key.append(" cookie:").append(session);
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * Looks up a response. A fresh entry can be used as it is; a stale one should be
+	 * revalidated with addConditionalHeaders.
+	 * 
+	 * @return the entry, or null if there is none
+	 */
+	public Entry lookup(String key) {
+		numRequests.increment();
+		Entry entry = cache.get(key);
+		if((entry != null) && entry.isFresh()){
+			numFreshHits.increment();
+		}
+		return entry;
+	}
+	
+	/**
+	 * Adds the headers making the request conditional on the entry having changed
+	 */
+	public WebResource.Builder addConditionalHeaders(WebResource.Builder builder, Entry entry) {
+		if(entry.etag != null){
+			builder = builder.header("If-None-Match", entry.etag);
+		}
+		if(entry.lastModified != null){
+			builder = builder.header("If-Modified-Since", entry.lastModified);
+		}
+		return builder;
+	}
+	
+	/**
+	 * Records a 304 Not Modified for the entry, which is fresh again for the max-age of the response
+	 */
+	public void notModified(Entry entry, ClientResponse response) {
+		numNotModified.increment();
+		long maxAge = maxAge(response);
+		if(maxAge > 0){
+			entry.freshUntil = System.currentTimeMillis() + maxAge;
+		}
+	}
+	
+	/**
+	 * Caches the decoded value of a 200 response, if the response allows it
+	 */
+	public void store(String key, ClientResponse response, Object value) {
+		if((response.getStatus() != 200) || (value == null)){
+			return;
+		}
+		long maxAge = maxAge(response);
+		String etag = response.getHeaders().getFirst("ETag");
+		String lastModified = response.getHeaders().getFirst("Last-Modified");
+		if((maxAge < 0) || ((maxAge == 0) && (etag == null) && (lastModified == null))){
+			return;
+		}
+		cache.put(key, new Entry(value, etag, lastModified, System.currentTimeMillis() + maxAge), Math.max(retention, maxAge));
+	}
+	
+	/**
+	 * @return the max-age of the response in ms, 0 if it must be revalidated, or -1 if it must
+	 * not be stored in a shared cache
+	 */
+	private static long maxAge(ClientResponse response) {
+		String cacheControl = response.getHeaders().getFirst("Cache-Control");
+		if(cacheControl == null){
+			return 0;
+		}
+		long maxAge = 0;
+		for(String directive : cacheControl.split(",")){
+			directive = directive.trim().toLowerCase();
+			if(directive.equals("no-store") || directive.equals("private") || directive.startsWith("private=")){
+				return -1;
+			}
+			else if(directive.equals("no-cache")){
+				return 0;
+			}
+			else if(directive.startsWith("max-age=")){
+				try {
+					maxAge = Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000L;
+				}
+				catch (NumberFormatException e) {
+					maxAge = 0;
+				}
+			}
+		}
+		return maxAge;
+	}
+	
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+	
+	/**
+	 * Stops the maintenance of the underlying cache
+	 */
+	public void stop() {
+		cache.stop();
+	}
+	
+	public int size() {
+		return cache.size();
+	}
+
+	public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * How long, in ms, a response is kept for revalidation after it was stored, if longer than its max-age
+	 */
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+	
+	public long getNumRequests() {
+		return numRequests.sum();
+	}
+	
+	/**
+	 * @return the number of requests answered from the cache without going to the server
+	 */
+	public long getNumFreshHits() {
+		return numFreshHits.sum();
+	}
+	
+	/**
+	 * @return the number of requests answered from the cache after a 304 Not Modified
+	 */
+	public long getNumNotModified() {
+		return numNotModified.sum();
+	}
+	
+	/**
+	 * @return the share of requests whose body was not downloaded, or 0 before any request
+	 */
+	public double getHitRatio() {
+		long requests = numRequests.sum();
+		if(requests == 0){
+			return 0.0d;
+		}
+		return (double) (numFreshHits.sum() + numNotModified.sum()) / requests;
+	}
+}
@@ -17,14 +17,11 @@
  */
 package com.r573.enfili.common.resource.rest;
 
+import java.io.InputStream;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.NewCookie;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +30,7 @@ import com.r573.enfili.common.doc.json.JsonHelper;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
 import com.sun.jersey.api.json.JSONConfiguration;
@@ -41,15 +39,35 @@ public class RestClient {
 
 	private final Logger log = LoggerFactory.getLogger(RestClient.class);
 	
+	private static final String CACHE_CLIENT_KIND = "rest";
+	
 	private Client jerseyClient;
 	private String baseUrl;
-	private Map<String, Cookie> cookies;
+	private CookieStore cookies;
+	private volatile HttpResponseCache responseCache;
+	// null for no compression, otherwise whether request bodies are compressed as well as responses
+	private volatile Boolean gzipRequests;
 
 	public RestClient(String baseUrl) {
+		this(baseUrl, createClient());
+	}
+	
+	/**
+	 * Creates a client sending its requests through the shared connections of the pool
+	 */
+	public RestClient(String baseUrl, RestConnectionPool connectionPool) {
+		this(baseUrl, connectionPool.getClient());
+	}
+	
+	private static Client createClient() {
 		ClientConfig clientConfig = new DefaultClientConfig();
 		clientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
-		jerseyClient = Client.create(clientConfig);
-		cookies = new HashMap<String, Cookie>();
+		return Client.create(clientConfig);
+	}
+	
+	private RestClient(String baseUrl, Client jerseyClient) {
+		this.jerseyClient = jerseyClient;
+		cookies = new CookieStore();
 		if(!baseUrl.endsWith("/")){
 			baseUrl = baseUrl + "/";
 		}
@@ -61,36 +79,65 @@ public class RestClient {
 		log.debug("Creating resource path: " + resourcePath);
 		
 		WebResource webResource = jerseyClient.resource(resourcePath);
+		Boolean compressRequests = gzipRequests;
+		if(compressRequests != null){
+			// a new filter for every resource, since adding a filter links it to the client's chain
+			webResource.addFilter(new GZIPContentEncodingFilter(compressRequests.booleanValue()));
+		}
 		
 		for(String key : queryParams.keySet()){
 			webResource = webResource.queryParam(key, queryParams.get(key));
 		}
 		
 		WebResource.Builder builder = webResource.type(MediaType.APPLICATION_JSON_TYPE).accept(MediaType.APPLICATION_JSON_TYPE);;
-		Set<String> cookieNames = cookies.keySet();
-		for (String cookieName : cookieNames) {
-			builder = builder.cookie(cookies.get(cookieName));
+		String cookieHeader = cookies.getHeader();
+		if(cookieHeader != null){
+			builder = builder.header("Cookie", cookieHeader);
 		}
 		return builder;
 	}
 
+	@SuppressWarnings("unchecked")
 	public <T> ResponseWrapper<T> get(String path, Class<T> clazz, Map<String,String> queryParams) {
-		ClientResponse response = getResource(path,queryParams).get(ClientResponse.class);
-		return processResponse(response, clazz);
+		HttpResponseCache cache = responseCache;
+		if(cache == null){
+			ClientResponse response = getResource(path,queryParams).get(ClientResponse.class);
+			return processResponse(response, clazz);
+		}
+		
+		String cacheKey = HttpResponseCache.key(CACHE_CLIENT_KIND, cookies.getHeader(), baseUrl + path, queryParams, clazz);
+		HttpResponseCache.Entry cached = cache.lookup(cacheKey);
+		if((cached != null) && cached.isFresh()){
+			return (ResponseWrapper<T>) cached.getValue();
+		}
+		WebResource.Builder builder = getResource(path,queryParams);
+		if(cached != null){
+			builder = cache.addConditionalHeaders(builder, cached);
+		}
+		ClientResponse response = builder.get(ClientResponse.class);
+		if((cached != null) && (response.getStatus() == ClientResponse.Status.NOT_MODIFIED.getStatusCode())){
+			cookies.update(response.getCookies());
+			response.close();
+			cache.notModified(cached, response);
+			return (ResponseWrapper<T>) cached.getValue();
+		}
+		ResponseWrapper<T> result = processResponse(response, clazz);
+		cache.store(cacheKey, response, result);
+		return result;
 	}
 	public <T> ResponseWrapper<T> get(String path, Class<T> clazz) {
 		return get(path,clazz,new HashMap<String,String>());
 	}
 
 	public <T> ResponseWrapper<T> post(String path, Object postObj, Class<T> clazz) {
-		String postObjJson = JsonHelper.toJson(postObj);
+		byte[] postObjJson = JsonHelper.toJsonBytes(postObj);
 		ClientResponse response = getResource(path,new HashMap<String,String>()).post(ClientResponse.class, postObjJson);
 		log.debug("status=" + response.getStatus());
 		return processResponse(response, clazz);
 	}
 
 	public <T> ResponseWrapper<T> put(String path, Object postObj, Class<T> clazz) {
-		String postObjJson = JsonHelper.toJson(postObj);
+		byte[] postObjJson = JsonHelper.toJsonBytes(postObj);
 		ClientResponse response = getResource(path,new HashMap<String,String>()).put(ClientResponse.class, postObjJson);
 		return processResponse(response, clazz);
 	}
@@ -101,22 +148,49 @@ public class RestClient {
 	}
 	
 	private <T> ResponseWrapper<T> processResponse(ClientResponse response, Class<T> clazz) {		
-		List<NewCookie> newCookies = response.getCookies();
-		for (NewCookie newCookie : newCookies) {
-			cookies.put(newCookie.getName(), newCookie);
-		}
-
-		String wsResponseJson = response.getEntity(String.class);
-		log.debug(wsResponseJson);
+		cookies.update(response.getCookies());
 
+		InputStream entityStream = response.getEntityInputStream();
 		try{
 			@SuppressWarnings({ "unchecked", "rawtypes" })
-			ResponseWrapper<T> wsResponse = new ResponseWrapper(JsonHelper.fromJson(wsResponseJson, clazz));
+			ResponseWrapper<T> wsResponse = new ResponseWrapper(JsonHelper.fromJson(entityStream, clazz));
 			return wsResponse;			
 		}
 		catch(Exception e){
+			log.debug("Failed to parse response: " + e.getMessage());
 			return null;
 		}
+		finally{
+			response.close();
+		}
+	}
+
+	/**
+	 * Sets whether gzip responses are accepted and decompressed, and whether request bodies
+	 * are sent compressed, which needs a server that decompresses them such as one with
+	 * GzipContentEncodingFilter. Compressing requests also accepts gzip responses. Both are off
+	 * by default.
+	 */
+	public void setCompression(boolean gzipResponses, boolean gzipRequests) {
+		if(gzipRequests){
+			this.gzipRequests = Boolean.TRUE;
+		}
+		else if(gzipResponses){
+			this.gzipRequests = Boolean.FALSE;
+		}
+		else{
+			this.gzipRequests = null;
+		}
+	}
+	
+	public HttpResponseCache getResponseCache() {
+		return responseCache;
 	}
 
+	/**
+	 * Cache for the responses of get, or null for none. One cache may be shared by several clients.
+	 */
+	public void setResponseCache(HttpResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
 }
@@ -0,0 +1,337 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.common.resource.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import com.sun.jersey.api.json.JSONConfiguration;
+
+/**
+ * A Jersey Client shared by any number of RestClient and WsRestClient instances, with limits
+ * on the connections to each route (scheme, host and port), connect and read timeouts, and
+ * keep-alive.
+ * 
+ * The client runs on the JDK's HttpURLConnection transport, which keeps idle connections
+ * alive per route and closes them once they have been idle for the server's keep-alive
+ * timeout (5 seconds by default). A connection only goes back to that cache once its response
+ * has been read to the end or closed, which RestClient and WsRestClient do for every response.
+ * The pool counts a connection as leased from the request until then, and a request waits
+ * for a lease if its route already has the maximum number of connections leased.
+ * 
+ * A response that is dropped without being read or closed gives its lease back once it has
+ * been garbage collected, and is counted by getNumLeakedLeases so that the leak shows up in
+ * the statistics.
+ * 
+ * The JDK keeps at most http.maxConnections idle connections per route, 5 unless set. That is
+ * a JVM-wide system property read once, before the first HTTP request, so the pool leaves it
+ * alone; applications that keep more connections per route alive should set it at startup.
+ * 
+ * @author ryanho
+ *
+ */
+public class RestConnectionPool {
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	private static final long DEFAULT_LEASE_TIMEOUT = 30000L;
+	// gives back the leases of responses that were garbage collected without being closed
+	private static final Cleaner LEASE_CLEANER = Cleaner.create();
+	
+	private static RestConnectionPool defaultPool;
+	
+	private final Client client;
+	private final int maxConnectionsPerRoute;
+	private final boolean keepAlive;
+	private volatile long leaseTimeout;
+	private final ConcurrentHashMap<String,Semaphore> routes;
+	private LongAdder numRequests;
+	private LongAdder numLeaseTimeouts;
+	private LongAdder totalLeaseWaitTime;
+	private LongAdder numLeakedLeases;
+	
+	/**
+	 * @return a pool with the default settings, shared by everything that does not need its own
+	 */
+	public static synchronized RestConnectionPool getDefault() {
+		if(defaultPool == null){
+			defaultPool = new RestConnectionPool(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, true);
+		}
+		return defaultPool;
+	}
+	
+	public RestConnectionPool(int maxConnectionsPerRoute, boolean keepAlive) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.keepAlive = keepAlive;
+		leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+		routes = new ConcurrentHashMap<String, Semaphore>();
+		numRequests = new LongAdder();
+		numLeaseTimeouts = new LongAdder();
+		totalLeaseWaitTime = new LongAdder();
+		numLeakedLeases = new LongAdder();
+		
+		ClientConfig clientConfig = new DefaultClientConfig();
+		clientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
+		client = Client.create(clientConfig);
+		client.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+		client.setReadTimeout(DEFAULT_READ_TIMEOUT);
+		client.addFilter(new LeaseFilter());
+	}
+	
+	public Client getClient() {
+		return client;
+	}
+	
+	private Semaphore routeFor(URI uri) {
+		int port = uri.getPort();
+		if(port == -1){
+			port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+		}
+		String route = uri.getScheme() + "://" + uri.getHost() + ":" + port;
+		Semaphore leases = routes.get(route);
+		if(leases == null){
+			leases = new Semaphore(maxConnectionsPerRoute, true);
+			Semaphore existing = routes.putIfAbsent(route, leases);
+			if(existing != null){
+				leases = existing;
+			}
+		}
+		return leases;
+	}
+	
+	/**
+	 * Leases a connection to the route for each request, until its response has been read or closed
+	 */
+	private class LeaseFilter extends ClientFilter {
+		@Override
+		public ClientResponse handle(ClientRequest request) throws ClientHandlerException {
+			numRequests.increment();
+			Semaphore leases = routeFor(request.getURI());
+			long startTime = System.nanoTime();
+			try {
+				if(!leases.tryAcquire(leaseTimeout, TimeUnit.MILLISECONDS)){
+					numLeaseTimeouts.increment();
+					throw new ClientHandlerException("Timed out waiting for a connection to " + request.getURI().getHost());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ClientHandlerException(e);
+			}
+			totalLeaseWaitTime.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+			if(!keepAlive){
+				request.getHeaders().putSingle("Connection", "close");
+			}
+			
+			ClientResponse response;
+			try {
+				response = getNext().handle(request);
+			}
+			catch (RuntimeException e) {
+				leases.release();
+				throw e;
+			}
+			InputStream entityStream = response.getEntityInputStream();
+			if(entityStream == null){
+				leases.release();
+			}
+			else{
+				response.setEntityInputStream(new LeasedInputStream(entityStream, new Lease(leases)));
+			}
+			return response;
+		}
+	}
+	
+	/**
+	 * One leased connection. Run by the cleaner if its stream becomes unreachable before the
+	 * lease was given back, so it must not refer to the stream.
+	 */
+	private class Lease implements Runnable {
+		private final Semaphore leases;
+		private final AtomicBoolean released;
+		
+		Lease(Semaphore leases) {
+			this.leases = leases;
+			released = new AtomicBoolean();
+		}
+		
+		boolean release() {
+			if(released.compareAndSet(false, true)){
+				leases.release();
+				return true;
+			}
+			return false;
+		}
+		
+		@Override
+		public void run() {
+			if(release()){
+				numLeakedLeases.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Gives the lease back when the response has been read to the end or closed
+	 */
+	private static class LeasedInputStream extends FilterInputStream {
+		private final Lease lease;
+		private final Cleaner.Cleanable cleanable;
+		
+		LeasedInputStream(InputStream in, Lease lease) {
+			super(in);
+			this.lease = lease;
+			cleanable = LEASE_CLEANER.register(this, lease);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b == -1){
+				release();
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int bytesRead = super.read(b, off, len);
+			if(bytesRead == -1){
+				release();
+			}
+			return bytesRead;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				release();
+			}
+		}
+		
+		private void release() {
+			if(lease.release()){
+				// unregisters the lease, which is already given back, from the cleaner
+				cleanable.clean();
+			}
+		}
+	}
+	
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+	
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	public void setConnectTimeout(int connectTimeout) {
+		client.setConnectTimeout(connectTimeout);
+	}
+	
+	public void setReadTimeout(int readTimeout) {
+		client.setReadTimeout(readTimeout);
+	}
+	
+	public long getLeaseTimeout() {
+		return leaseTimeout;
+	}
+	
+	/**
+	 * How long, in ms, a request waits for a connection when its route is at the maximum
+	 */
+	public void setLeaseTimeout(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+	
+	/**
+	 * @return the number of connections currently leased, by route
+	 */
+	public Map<String,Integer> getLeasedConnections() {
+		Map<String,Integer> leased = new HashMap<String, Integer>();
+		for(Map.Entry<String,Semaphore> route : routes.entrySet()){
+			leased.put(route.getKey(), maxConnectionsPerRoute - route.getValue().availablePermits());
+		}
+		return leased;
+	}
+	
+	/**
+	 * @return the number of connections currently leased, over all routes
+	 */
+	public int getTotalLeasedConnections() {
+		int leased = 0;
+		for(Semaphore leases : routes.values()){
+			leased += maxConnectionsPerRoute - leases.availablePermits();
+		}
+		return leased;
+	}
+	
+	/**
+	 * @return the number of requests waiting for a connection, over all routes
+	 */
+	public int getNumPendingRequests() {
+		int pending = 0;
+		for(Semaphore leases : routes.values()){
+			pending += leases.getQueueLength();
+		}
+		return pending;
+	}
+	
+	public long getNumRequests() {
+		return numRequests.sum();
+	}
+	
+	public long getNumLeaseTimeouts() {
+		return numLeaseTimeouts.sum();
+	}
+	
+	/**
+	 * @return the total time, in ms, that requests have waited for a connection
+	 */
+	public long getTotalLeaseWaitTime() {
+		return totalLeaseWaitTime.sum();
+	}
+	
+	/**
+	 * @return the number of leases given back only because their response was garbage collected
+	 * without being read to the end or closed
+	 */
+	public long getNumLeakedLeases() {
+		return numLeakedLeases.sum();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops calls to a server after a run of consecutive failures, so that callers fail fast
+ * instead of waiting on a server that is down. After the open period one trial call is let
+ * through; its success closes the breaker and its failure opens it again.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final int failureThreshold;
+	private final long openNanos;
+	
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInFlight;
+	
+	private final LongAdder numOpened = new LongAdder();
+	private final LongAdder numRejected = new LongAdder();
+
+	/**
+	 * @param failureThreshold the number of consecutive failures that opens the breaker
+	 * @param openMillis how long the breaker stays open before letting a trial call through
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openMillis * 1000000L;
+	}
+	
+	/**
+	 * @return whether a call may be made now. A call that is allowed must be followed by
+	 * onSuccess or onFailure.
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if(System.nanoTime() - openedAt >= openNanos){
+				state = State.HALF_OPEN;
+				trialInFlight = true;
+				return true;
+			}
+			break;
+		case HALF_OPEN:
+			if(!trialInFlight){
+				trialInFlight = true;
+				return true;
+			}
+			break;
+		}
+		numRejected.increment();
+		return false;
+	}
+	
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		trialInFlight = false;
+		state = State.CLOSED;
+	}
+	
+	public synchronized void onFailure() {
+		trialInFlight = false;
+		consecutiveFailures++;
+		if((state == State.HALF_OPEN) || ((state == State.CLOSED) && (consecutiveFailures >= failureThreshold))){
+			state = State.OPEN;
+			openedAt = System.nanoTime();
+			numOpened.increment();
+		}
+	}
+	
+	/**
+	 * Ends an allowed call that neither succeeded nor failed, such as one that could not be sent
+	 */
+	public synchronized void release() {
+		trialInFlight = false;
+	}
+	
+	public synchronized State getState() {
+		if((state == State.OPEN) && (System.nanoTime() - openedAt >= openNanos)){
+			// the next call will be the trial
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+	
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return the number of times the breaker has opened
+	 */
+	public long getNumOpened() {
+		return numOpened.sum();
+	}
+	
+	/**
+	 * @return the number of calls refused while the breaker was open
+	 */
+	public long getNumRejected() {
+		return numRejected.sum();
+	}
+}
@@ -0,0 +1,493 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.r573.enfili.common.exception.WsRuntimeException;
+import com.sun.jersey.api.client.ClientHandlerException;
+
+/**
+ * Retries, hedging and circuit breaking for the calls of WsRestClient, with a circuit breaker
+ * and latency statistics for each base URL. One instance may be shared by several clients.
+ * 
+ * Only failures to get a well formed response are retried and counted against the breaker:
+ * connection errors and timeouts (ClientHandlerException) and broken responses
+ * (WsRuntimeException). An error response is an answer from the server, so it ends the call
+ * with its WsRestException and counts as a success for the breaker. The breaker counts calls,
+ * not requests: a call fails once, when its last retry has failed.
+ * 
+ * Idempotent calls are retried with exponential backoff and full jitter. Hedged calls (GET)
+ * also send a second request when the first has taken longer than the recent p95 latency of
+ * the base URL, and take whichever answers first. The slower request is left to finish in the
+ * background and its response is discarded.
+ */
+public class WsResilience {
+	public static final String ERR_CIRCUIT_OPEN = "WSC-001";
+	public static final String ERR_INTERRUPTED = "WSC-002";
+	
+	private static final int LATENCY_WINDOW = 128;
+	private static final int LATENCY_MIN_SAMPLES = 20;
+	private static final int LATENCY_RECOMPUTE_INTERVAL = 16;
+	
+	private static final ExecutorService defaultHedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger threadNum = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "enfili-ws-hedge-" + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private final Logger log = LoggerFactory.getLogger(WsResilience.class);
+	
+	private volatile int maxRetries = 2;
+	private volatile long backoffBaseMillis = 50;
+	private volatile long backoffMaxMillis = 2000;
+	private volatile boolean hedgingEnabled = true;
+	private volatile long minHedgeDelayMillis = 5;
+	private volatile int failureThreshold = 5;
+	private volatile long openMillis = 30000;
+	private volatile Executor hedgeExecutor = defaultHedgeExecutor;
+	
+	private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	
+	private final LongAdder numCalls = new LongAdder();
+	private final LongAdder numRetries = new LongAdder();
+	private final LongAdder numHedges = new LongAdder();
+	private final LongAdder numHedgesWon = new LongAdder();
+	private final LongAdder numShortCircuited = new LongAdder();
+	
+	/**
+	 * A single attempt of a call. Both attempts of a hedged call may run to the end, so an
+	 * attempt should leave side effects such as caching its result to the caller of execute,
+	 * which only sees the winner.
+	 */
+	public interface Attempt<R> {
+		R run() throws WsRestException;
+	}
+	
+	/**
+	 * Makes the call to the base URL, retrying it if it is idempotent and hedging it if asked to.
+	 * The breaker sees the call as a single outcome, once its retries and hedges have finished.
+	 */
+	public <R> R execute(String baseUrl, boolean idempotent, boolean hedged, Attempt<R> attempt) throws WsRestException {
+		numCalls.increment();
+		Route route = getRoute(baseUrl);
+		if(!route.breaker.allowRequest()){
+			numShortCircuited.increment();
+			throw new WsRuntimeException(ERR_CIRCUIT_OPEN, "Circuit open for " + baseUrl);
+		}
+		boolean succeeded = false;
+		boolean failed = false;
+		try {
+			int retries = 0;
+			while(true){
+				try {
+					long start = System.nanoTime();
+					R result = (hedged && hedgingEnabled) ? runHedged(route, attempt) : attempt.run();
+					route.latencies.record(System.nanoTime() - start);
+					succeeded = true;
+					return result;
+				}
+				catch (WsRestException e) {
+					succeeded = true;
+					throw e;
+				}
+				catch (RuntimeException e) {
+					if(!isRetryable(e)){
+						throw e;
+					}
+					if(!idempotent || (retries >= maxRetries)){
+						failed = true;
+						throw e;
+					}
+					log.debug("Retrying call to " + baseUrl + " after " + e.getClass().getName());
+				}
+				retries++;
+				numRetries.increment();
+				backoff(retries);
+			}
+		}
+		finally {
+			if(succeeded){
+				route.breaker.onSuccess();
+			}
+			else if(failed){
+				route.breaker.onFailure();
+			}
+			else{
+				route.breaker.release();
+			}
+		}
+	}
+	
+	private boolean isRetryable(RuntimeException e) {
+		return (e instanceof ClientHandlerException) || ((e instanceof WsRuntimeException) && !ERR_INTERRUPTED.equals(((WsRuntimeException) e).getErrCode()));
+	}
+	
+	private void backoff(int retry) {
+		long ceiling = Math.min(backoffMaxMillis, backoffBaseMillis << Math.min(retry - 1, 30));
+		if(ceiling <= 0){
+			return;
+		}
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WsRuntimeException(ERR_INTERRUPTED, "Interrupted while backing off");
+		}
+	}
+	
+	/**
+	 * Runs both requests on the hedge executor, never on the executor of the caller, which may
+	 * be a bounded pool whose threads are all waiting on hedged calls
+	 */
+	private <R> R runHedged(Route route, Attempt<R> attempt) throws WsRestException {
+		Executor executor = hedgeExecutor;
+		long hedgeDelay = route.latencies.getP95();
+		if(hedgeDelay < 0){
+			// not enough samples yet to know what is slow
+			return attempt.run();
+		}
+		hedgeDelay = Math.max(hedgeDelay, TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis));
+		
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		final AtomicBoolean answered = new AtomicBoolean();
+		final AtomicInteger numSent = new AtomicInteger(1);
+		final AtomicInteger numFailed = new AtomicInteger();
+		submit(executor, attempt).whenComplete(new Outcome<R>(result, answered, numSent, numFailed, null));
+		try {
+			return unwrap(result, hedgeDelay);
+		} catch (TimeoutException e) {
+			// slower than usual, so race it with a second request
+		}
+		numSent.incrementAndGet();
+		if(!result.isDone()){
+			numHedges.increment();
+			submit(executor, attempt).whenComplete(new Outcome<R>(result, answered, numSent, numFailed, numHedgesWon));
+		}
+		try {
+			return unwrap(result, 0);
+		} catch (TimeoutException e) {
+			// cannot happen without a timeout
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private <R> CompletableFuture<R> submit(Executor executor, final Attempt<R> attempt) {
+		return CompletableFuture.supplyAsync(new Supplier<R>() {
+			@Override
+			public R get() {
+				try {
+					return attempt.run();
+				} catch (WsRestException e) {
+					throw new AttemptException(e);
+				}
+			}
+		}, executor);
+	}
+	
+	private <R> R unwrap(CompletableFuture<R> future, long timeoutNanos) throws WsRestException, TimeoutException {
+		try {
+			return (timeoutNanos > 0) ? future.get(timeoutNanos, TimeUnit.NANOSECONDS) : future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WsRuntimeException(ERR_INTERRUPTED, "Interrupted while waiting for a response");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof AttemptException){
+				throw (WsRestException) cause.getCause();
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+	
+	/**
+	 * Completes the result of a hedged call with the first success of its requests, or the
+	 * failure of the last one sent when all of them have failed
+	 */
+	private static class Outcome<R> implements BiConsumer<R, Throwable> {
+		private final CompletableFuture<R> result;
+		private final AtomicInteger numSent;
+		private final AtomicInteger numFailed;
+		private final AtomicBoolean answered;
+		private final LongAdder wins;
+
+		Outcome(CompletableFuture<R> result, AtomicBoolean answered, AtomicInteger numSent, AtomicInteger numFailed, LongAdder wins) {
+			this.result = result;
+			this.answered = answered;
+			this.numSent = numSent;
+			this.numFailed = numFailed;
+			this.wins = wins;
+		}
+
+		@Override
+		public void accept(R value, Throwable failure) {
+			if(failure == null){
+				if(answered.compareAndSet(false, true)){
+					// counted before completing, so the win is visible to the woken caller
+					if(wins != null){
+						wins.increment();
+					}
+					result.complete(value);
+				}
+			}
+			else if(numFailed.incrementAndGet() == numSent.get()){
+				result.completeExceptionally((failure instanceof CompletionException) ? failure.getCause() : failure);
+			}
+		}
+	}
+	
+	/**
+	 * Carries a WsRestException through a CompletableFuture
+	 */
+	private static class AttemptException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		AttemptException(WsRestException cause) {
+			super(cause);
+		}
+	}
+	
+	/**
+	 * Latencies of the recent successful calls to a base URL
+	 */
+	private static class LatencyWindow {
+		private final long[] samples = new long[LATENCY_WINDOW];
+		private int count;
+		private int next;
+		private volatile long p95 = -1;
+		
+		synchronized void record(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % LATENCY_WINDOW;
+			if(count < LATENCY_WINDOW){
+				count++;
+			}
+			if((count >= LATENCY_MIN_SAMPLES) && ((next % LATENCY_RECOMPUTE_INTERVAL) == 0)){
+				long[] sorted = Arrays.copyOf(samples, count);
+				Arrays.sort(sorted);
+				p95 = sorted[(int) Math.ceil(count * 0.95) - 1];
+			}
+		}
+		
+		/**
+		 * @return the p95 latency in ns, or -1 until there are enough samples
+		 */
+		long getP95() {
+			return p95;
+		}
+	}
+	
+	private static class Route {
+		final CircuitBreaker breaker;
+		final LatencyWindow latencies = new LatencyWindow();
+		
+		Route(CircuitBreaker breaker) {
+			this.breaker = breaker;
+		}
+	}
+	
+	private Route getRoute(String baseUrl) {
+		Route route = routes.get(baseUrl);
+		if(route == null){
+			Route created = new Route(new CircuitBreaker(failureThreshold, openMillis));
+			route = routes.putIfAbsent(baseUrl, created);
+			if(route == null){
+				route = created;
+			}
+		}
+		return route;
+	}
+	
+	/**
+	 * @return the circuit breaker of the base URL
+	 */
+	public CircuitBreaker getCircuitBreaker(String baseUrl) {
+		return getRoute(baseUrl).breaker;
+	}
+	
+	/**
+	 * @return the state of the circuit breaker of each base URL called so far
+	 */
+	public Map<String, CircuitBreaker.State> getBreakerStates() {
+		Map<String, CircuitBreaker.State> states = new HashMap<String, CircuitBreaker.State>();
+		for(Map.Entry<String, Route> entry : routes.entrySet()){
+			states.put(entry.getKey(), entry.getValue().breaker.getState());
+		}
+		return Collections.unmodifiableMap(states);
+	}
+	
+	/**
+	 * @return the delay, in ms, after which a call to the base URL is hedged, or -1 until
+	 * enough calls have been timed
+	 */
+	public long getHedgeDelay(String baseUrl) {
+		long p95 = getRoute(baseUrl).latencies.getP95();
+		if(p95 < 0){
+			return -1;
+		}
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(p95), minHedgeDelayMillis);
+	}
+
+	public Executor getHedgeExecutor() {
+		return hedgeExecutor;
+	}
+	
+	/**
+	 * Executor for the requests of hedged calls, whose callers wait for them. By default an
+	 * unbounded pool of daemon threads shared by all instances. It must not be the async
+	 * executor of a client using this instance if that executor is bounded, or hedged async
+	 * calls can take all of its threads and wait on requests that never start.
+	 */
+	public void setHedgeExecutor(Executor hedgeExecutor) {
+		this.hedgeExecutor = hedgeExecutor;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * The number of times an idempotent call is retried after its first attempt
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public long getBackoffBaseMillis() {
+		return backoffBaseMillis;
+	}
+
+	/**
+	 * The ceiling, in ms, of the random wait before the first retry, which doubles with each retry
+	 */
+	public void setBackoffBaseMillis(long backoffBaseMillis) {
+		this.backoffBaseMillis = backoffBaseMillis;
+	}
+
+	public long getBackoffMaxMillis() {
+		return backoffMaxMillis;
+	}
+
+	public void setBackoffMaxMillis(long backoffMaxMillis) {
+		this.backoffMaxMillis = backoffMaxMillis;
+	}
+
+	public boolean isHedgingEnabled() {
+		return hedgingEnabled;
+	}
+
+	public void setHedgingEnabled(boolean hedgingEnabled) {
+		this.hedgingEnabled = hedgingEnabled;
+	}
+
+	public long getMinHedgeDelayMillis() {
+		return minHedgeDelayMillis;
+	}
+
+	/**
+	 * The shortest delay, in ms, before hedging, so that a very fast server is not sent every call twice
+	 */
+	public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+		this.minHedgeDelayMillis = minHedgeDelayMillis;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * The number of consecutive failures that opens the breaker of a base URL. Applies to
+	 * base URLs first called after it is set.
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public long getOpenMillis() {
+		return openMillis;
+	}
+
+	/**
+	 * How long, in ms, an open breaker refuses calls. Applies to base URLs first called after it is set.
+	 */
+	public void setOpenMillis(long openMillis) {
+		this.openMillis = openMillis;
+	}
+	
+	public long getNumCalls() {
+		return numCalls.sum();
+	}
+	
+	public long getNumRetries() {
+		return numRetries.sum();
+	}
+	
+	/**
+	 * @return the number of calls that sent a second request
+	 */
+	public long getNumHedges() {
+		return numHedges.sum();
+	}
+	
+	/**
+	 * @return the number of hedged calls answered first by the second request
+	 */
+	public long getNumHedgesWon() {
+		return numHedgesWon.sum();
+	}
+	
+	/**
+	 * @return the number of calls refused by an open breaker
+	 */
+	public long getNumShortCircuited() {
+		return numShortCircuited.sum();
+	}
+}
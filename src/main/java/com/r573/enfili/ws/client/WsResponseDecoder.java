@@ -0,0 +1,138 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.client;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.JavaType;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import com.r573.enfili.common.exception.WsRuntimeException;
+import com.r573.enfili.ws.data.WsError;
+import com.r573.enfili.ws.data.WsResponse;
+
+/**
+ * Decodes a WsResponse in a single pass over the token stream. The statusCode decides
+ * whether responseData is bound to the expected type or to a WsError, so the data is bound
+ * straight from the stream when statusCode comes first, as the server writes it. If the data
+ * comes first it is held in a token buffer until the status is known, so field order does not
+ * matter either way.
+ * 
+ * @author ryanho
+ *
+ */
+public class WsResponseDecoder {
+	private static final ConcurrentHashMap<Class<?>,JavaType> dataTypes = new ConcurrentHashMap<Class<?>, JavaType>();
+	
+	/**
+	 * Decodes the response read by the parser, which must have been created by an ObjectMapper
+	 * and is closed afterwards
+	 * 
+	 * @param clazz type of the responseData, or null to bind it as untyped maps and lists
+	 * @throws WsRestException if the response is an error response
+	 */
+	public static <T> WsResponse<T> decode(JsonParser parser, Class<T> clazz) throws IOException, WsRestException {
+		try {
+			Envelope envelope = readEnvelope(parser);
+			if(!envelope.isOk()){
+				throw new WsRestException(envelope.readError());
+			}
+			T responseData = null;
+			if(envelope.data != null){
+				ObjectMapper mapper = (ObjectMapper) parser.getCodec();
+				responseData = mapper.readValue(envelope.data, dataType(mapper, clazz));
+			}
+			return new WsResponse<T>(envelope.statusCode, responseData);
+		}
+		finally {
+			parser.close();
+		}
+	}
+	
+	private static JavaType dataType(ObjectMapper mapper, Class<?> clazz) {
+		Class<?> dataClass = (clazz == null) ? Object.class : clazz;
+		JavaType dataType = dataTypes.get(dataClass);
+		if(dataType == null){
+			dataType = mapper.getTypeFactory().constructType(dataClass);
+			dataTypes.put(dataClass, dataType);
+		}
+		return dataType;
+	}
+	
+	/**
+	 * Reads the envelope up to the responseData value, or to the end if statusCode comes last
+	 */
+	static Envelope readEnvelope(JsonParser parser) throws IOException {
+		if(parser.nextToken() != JsonToken.START_OBJECT){
+			throw new WsRuntimeException(null, "Response is not a WsResponse");
+		}
+		Envelope envelope = new Envelope();
+		TokenBuffer bufferedData = null;
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String fieldName = parser.getCurrentName();
+			parser.nextToken();
+			if(fieldName.equals("statusCode")){
+				envelope.statusCode = parser.getText();
+				if(bufferedData != null){
+					break;
+				}
+			}
+			else if(fieldName.equals("responseData")){
+				if(envelope.statusCode != null){
+					envelope.data = parser;
+					return envelope;
+				}
+				// the status is not known yet, so hold on to the data until it is
+				bufferedData = new TokenBuffer(parser.getCodec());
+				bufferedData.copyCurrentStructure(parser);
+			}
+			else{
+				parser.skipChildren();
+			}
+		}
+		if(bufferedData != null){
+			envelope.data = bufferedData.asParser(parser.getCodec());
+			envelope.data.nextToken();
+		}
+		return envelope;
+	}
+	
+	/**
+	 * The statusCode of a response, and a parser positioned on the first token of its
+	 * responseData, or null if there is none
+	 */
+	static class Envelope {
+		String statusCode;
+		JsonParser data;
+		
+		boolean isOk() {
+			return WsResponse.RESP_CODE_OK.equals(statusCode);
+		}
+		
+		WsError readError() throws IOException {
+			if((data == null) || (data.getCurrentToken() == JsonToken.VALUE_NULL)){
+				return new WsError(WsError.GENERAL_ERROR, "General Error");
+			}
+			return data.readValueAs(WsError.class);
+		}
+	}
+}
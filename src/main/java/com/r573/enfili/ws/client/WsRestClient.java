@@ -20,36 +20,54 @@ package com.r573.enfili.ws.client;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.NewCookie;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.JavaType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.r573.enfili.common.doc.json.JsonArrayIterator;
 import com.r573.enfili.common.doc.json.JsonHelper;
 import com.r573.enfili.common.exception.WsRuntimeException;
+import com.r573.enfili.common.resource.rest.CookieStore;
+import com.r573.enfili.common.resource.rest.HttpResponseCache;
+import com.r573.enfili.common.resource.rest.RestConnectionPool;
 import com.r573.enfili.common.text.StringHelper;
-import com.r573.enfili.ws.data.WsError;
 import com.r573.enfili.ws.data.WsResponse;
+import com.r573.enfili.ws.jersey.SmileProvider;
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
 import com.sun.jersey.api.json.JSONConfiguration;
@@ -57,149 +75,635 @@ import com.sun.jersey.api.json.JSONConfiguration;
 public class WsRestClient {
 
 	private final Logger log = LoggerFactory.getLogger(WsRestClient.class);
+	private static final ExecutorService defaultAsyncExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger threadNum = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "enfili-ws-async-" + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private static final String CACHE_CLIENT_KIND = "ws";
 	
-	private Client jerseyClient = new Client();
+	private Client jerseyClient;
 	private String baseUrl;
-	private Map<String, Cookie> cookies;
+	private CookieStore cookies;
+	private volatile boolean smileEnabled;
+	private volatile Executor asyncExecutor = defaultAsyncExecutor;
+	private volatile WsResilience resilience;
+	private volatile HttpResponseCache responseCache;
+	private volatile boolean collapseGets;
+	// null for no compression, otherwise whether request bodies are compressed as well as responses
+	private volatile Boolean gzipRequests;
+	private final ConcurrentHashMap<String, CompletableFuture<WsResponse<?>>> inFlightGets = new ConcurrentHashMap<String, CompletableFuture<WsResponse<?>>>();
+	private final LongAdder numCollapsedGets = new LongAdder();
 
 	public WsRestClient(String baseUrl) {
 		ClientConfig clientConfig = new DefaultClientConfig();
 		clientConfig.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
 		jerseyClient = Client.create(clientConfig);
-		cookies = new HashMap<String, Cookie>();
+		cookies = new CookieStore();
+		this.baseUrl = baseUrl;
+	}
+	
+	/**
+	 * Creates a client sending its requests through the shared connections of the pool
+	 */
+	public WsRestClient(String baseUrl, RestConnectionPool connectionPool) {
+		jerseyClient = connectionPool.getClient();
+		cookies = new CookieStore();
 		this.baseUrl = baseUrl;
 	}
 
 	private WebResource.Builder getResource(String path, Map<String,String> queryParams) {
+		return getResource(path, queryParams, 0);
+	}
+	
+	/**
+	 * @param timeoutMillis connect and read timeout for this request only, or 0 for the client's
+	 */
+	private WebResource.Builder getResource(String path, Map<String,String> queryParams, long timeoutMillis) {
 		WebResource webResource = jerseyClient.resource(baseUrl + path);
+		Boolean compressRequests = gzipRequests;
+		if(compressRequests != null){
+			// a new filter for every resource, since adding a filter links it to the client's chain
+			webResource.addFilter(new GZIPContentEncodingFilter(compressRequests.booleanValue()));
+		}
 		for(String key : queryParams.keySet()){
 			webResource = webResource.queryParam(key, queryParams.get(key));
 		}
+		if(timeoutMillis > 0){
+			Integer timeout = Integer.valueOf((int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+			webResource.setProperty(ClientConfig.PROPERTY_CONNECT_TIMEOUT, timeout);
+			webResource.setProperty(ClientConfig.PROPERTY_READ_TIMEOUT, timeout);
+		}
 
-		WebResource.Builder builder = webResource.type(MediaType.APPLICATION_JSON_TYPE).accept(MediaType.APPLICATION_JSON_TYPE);
+		WebResource.Builder builder;
+		if(smileEnabled){
+			// JSON stays acceptable, for servers and error responses without Smile
+			builder = webResource.type(SmileProvider.APPLICATION_SMILE_TYPE).accept(SmileProvider.APPLICATION_SMILE, MediaType.APPLICATION_JSON + ";q=0.9");
+		}
+		else{
+			builder = webResource.type(MediaType.APPLICATION_JSON_TYPE).accept(MediaType.APPLICATION_JSON_TYPE);
+		}
 		builder = addCookies(builder);
 		return builder;
 	}
+	
+	private byte[] encodeBody(Object postObj) {
+		return smileEnabled ? JsonHelper.toSmile(postObj) : JsonHelper.toJsonBytes(postObj);
+	}
+	
+	/**
+	 * @return the mapper for the encoding the server chose for the response
+	 */
+	private ObjectMapper mapperFor(ClientResponse response) {
+		MediaType type = response.getType();
+		if((type != null) && type.getSubtype().equalsIgnoreCase(SmileProvider.APPLICATION_SMILE_TYPE.getSubtype())){
+			return JsonHelper.getSmileMapper();
+		}
+		return JsonHelper.getObjectMapper();
+	}
 
 	public <T> WsResponse<T> get(String path, Class<T> clazz, Map<String,String> queryParams) throws WsRestException {
-		ClientResponse response = getResource(path,queryParams).get(ClientResponse.class);
-		return processResponse(response, clazz);
+		return call("GET", path, queryParams, null, clazz, 0, null);
 	}
 	public <T> WsResponse<T> get(String path, Class<T> clazz) throws WsRestException {
 		return get(path,clazz,new HashMap<String, String>());
 	}
 
 	public <T> WsResponse<T> post(String path, Object postObj, Class<T> clazz) throws WsRestException {
-		String postObjJson = JsonHelper.toJson(postObj);
-		ClientResponse response = getResource(path,new HashMap<String, String>()).post(ClientResponse.class, postObjJson);
-		log.debug("status=" + response.getStatus());
-		return processResponse(response, clazz);
+		return call("POST", path, new HashMap<String, String>(), postObj, clazz, 0, null);
 	}
 
 	public <T> WsResponse<T> put(String path, Object postObj, Class<T> clazz) throws WsRestException {
-		String postObjJson = JsonHelper.toJson(postObj);
-		ClientResponse response = getResource(path,new HashMap<String, String>()).put(ClientResponse.class, postObjJson);
-		return processResponse(response, clazz);
+		return call("PUT", path, new HashMap<String, String>(), postObj, clazz, 0, null);
 	}
 
 	public <T> WsResponse<T> delete(String path, Class<T> clazz) throws WsRestException {
-		ClientResponse response = getResource(path,new HashMap<String, String>()).delete(ClientResponse.class);
-		return processResponse(response, clazz);
+		return call("DELETE", path, new HashMap<String, String>(), null, clazz, 0, null);
 	}
 	
-	private <T> WsResponse<T> processResponse(ClientResponse response, Class<T> clazz) throws WsRestException {
-
-		ObjectMapper objectMapper = new ObjectMapper();
-		JavaType javaType = null;
+	/**
+	 * Makes the call through the response cache, GET collapsing and the resilience policy, if
+	 * they are enabled
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> WsResponse<T> call(String method, String path, Map<String,String> queryParams, Object postObj,
+			Class<T> clazz, long timeoutMillis, AtomicReference<ClientResponse> inFlight) throws WsRestException {
+		HttpResponseCache cache = method.equals("GET") ? responseCache : null;
+		String cacheKey;
+		HttpResponseCache.Entry cached;
+		if(cache != null){
+			cacheKey = HttpResponseCache.key(CACHE_CLIENT_KIND, cookies.getHeader(), baseUrl + path, queryParams, clazz);
+			cached = cache.lookup(cacheKey);
+			if((cached != null) && cached.isFresh()){
+				return (WsResponse<T>) cached.getValue();
+			}
+		}
+		else{
+			cacheKey = null;
+			cached = null;
+		}
 		
-		if (clazz != null) {
-			javaType = objectMapper.getTypeFactory().constructParametricType(WsResponse.class, clazz);
-		} else {
-			javaType = objectMapper.getTypeFactory().constructType(WsResponse.class);
+		if(collapseGets && method.equals("GET")){
+			return collapse(method, path, queryParams, clazz, timeoutMillis, inFlight, cache, cacheKey, cached);
+		}
+		return callResilient(method, path, queryParams, postObj, clazz, timeoutMillis, inFlight, cache, cacheKey, cached);
+	}
+	
+	/**
+	 * Makes the GET unless an identical one is already in flight, in which case this waits for
+	 * its response instead. Only calls that overlap are collapsed, so nothing is served stale.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> WsResponse<T> collapse(String method, String path, Map<String,String> queryParams, Class<T> clazz, long timeoutMillis,
+			AtomicReference<ClientResponse> inFlight, HttpResponseCache cache, String cacheKey, HttpResponseCache.Entry cached) throws WsRestException {
+		String key = (cacheKey != null) ? cacheKey : HttpResponseCache.key(CACHE_CLIENT_KIND, cookies.getHeader(), baseUrl + path, queryParams, clazz);
+		CompletableFuture<WsResponse<?>> call = new CompletableFuture<WsResponse<?>>();
+		CompletableFuture<WsResponse<?>> leader = inFlightGets.putIfAbsent(key, call);
+		if(leader != null){
+			numCollapsedGets.increment();
+			try {
+				return (WsResponse<T>) leader.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WsRuntimeException(null, "Interrupted while waiting for a response");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof WsRestException){
+					throw (WsRestException) cause;
+				}
+				if(cause instanceof RuntimeException){
+					throw (RuntimeException) cause;
+				}
+				if(cause instanceof Error){
+					throw (Error) cause;
+				}
+				throw new IllegalStateException(cause);
+			}
 		}
 		
-		List<NewCookie> newCookies = response.getCookies();
-		for (NewCookie newCookie : newCookies) {
-			cookies.put(newCookie.getName(), newCookie);
+		WsResponse<T> result;
+		try {
+			result = callResilient(method, path, queryParams, null, clazz, timeoutMillis, inFlight, cache, cacheKey, cached);
+		}
+		catch (WsRestException e) {
+			inFlightGets.remove(key, call);
+			call.completeExceptionally(e);
+			throw e;
+		}
+		catch (RuntimeException e) {
+			inFlightGets.remove(key, call);
+			call.completeExceptionally(e);
+			throw e;
+		}
+		catch (Error e) {
+			inFlightGets.remove(key, call);
+			call.completeExceptionally(e);
+			throw e;
+		}
+		// removed first, so that a call starting now makes its own request
+		inFlightGets.remove(key, call);
+		call.complete(result);
+		return result;
+	}
+	
+	/**
+	 * GET, PUT and DELETE are idempotent and may be retried; only GET is hedged, so that writes
+	 * are not doubled. The response is cached once the policy has picked it, so that the losing
+	 * request of a hedged GET does not overwrite the entry of the winner.
+	 */
+	private <T> WsResponse<T> callResilient(final String method, final String path, final Map<String,String> queryParams, final Object postObj,
+			final Class<T> clazz, final long timeoutMillis, final AtomicReference<ClientResponse> inFlight,
+			final HttpResponseCache cache, final String cacheKey, final HttpResponseCache.Entry cached) throws WsRestException {
+		WsResilience policy = resilience;
+		Sent<T> sent;
+		if(policy == null){
+			sent = send(method, path, queryParams, postObj, clazz, timeoutMillis, inFlight, cache, cached);
+		}
+		else{
+			boolean idempotent = !method.equals("POST");
+			sent = policy.execute(baseUrl, idempotent, method.equals("GET"), new WsResilience.Attempt<Sent<T>>() {
+				@Override
+				public Sent<T> run() throws WsRestException {
+					return send(method, path, queryParams, postObj, clazz, timeoutMillis, inFlight, cache, cached);
+				}
+			});
+		}
+		if(sent.revalidated != null){
+			cache.notModified(sent.revalidated, sent.response);
+			return sent.cachedResult();
+		}
+		if(cache != null){
+			cache.store(cacheKey, sent.response, sent.result);
+		}
+		return sent.result;
+	}
+	
+	/**
+	 * Sends one request. The result is not cached here, see callResilient.
+	 * 
+	 * @param inFlight set to the response when it arrives, if not null
+	 * @param cache the cache holding the stale entry, or null
+	 * @param cached the stale entry to revalidate, or null
+	 */
+	private <T> Sent<T> send(String method, String path, Map<String,String> queryParams, Object postObj, Class<T> clazz, long timeoutMillis,
+			AtomicReference<ClientResponse> inFlight, HttpResponseCache cache, HttpResponseCache.Entry cached) throws WsRestException {
+		WebResource.Builder builder = getResource(path, queryParams, timeoutMillis);
+		if(cached != null){
+			builder = cache.addConditionalHeaders(builder, cached);
+		}
+		ClientResponse response;
+		if(postObj == null){
+			response = builder.method(method, ClientResponse.class);
+		}
+		else{
+			response = builder.method(method, ClientResponse.class, encodeBody(postObj));
+		}
+		log.debug("status=" + response.getStatus());
+		if(inFlight != null){
+			inFlight.set(response);
+		}
+		if((cached != null) && (response.getStatus() == ClientResponse.Status.NOT_MODIFIED.getStatusCode())){
+			storeCookies(response);
+			response.close();
+			return new Sent<T>(response, null, cached);
+		}
+		return new Sent<T>(response, processResponse(response, clazz), null);
+	}
+	
+	/**
+	 * The outcome of one request: its response, and either the decoded result or, for a
+	 * 304 Not Modified, the cache entry it revalidated
+	 */
+	private static class Sent<T> {
+		final ClientResponse response;
+		final WsResponse<T> result;
+		final HttpResponseCache.Entry revalidated;
+		
+		Sent(ClientResponse response, WsResponse<T> result, HttpResponseCache.Entry revalidated) {
+			this.response = response;
+			this.result = result;
+			this.revalidated = revalidated;
 		}
-
-		String wsResponseJson = response.getEntity(String.class);
-		log.debug(wsResponseJson);
 		
+		@SuppressWarnings("unchecked")
+		WsResponse<T> cachedResult() {
+			return (WsResponse<T>) revalidated.getValue();
+		}
+	}
+	
+	public <T> CompletableFuture<WsResponse<T>> getAsync(String path, Class<T> clazz, Map<String,String> queryParams, long timeoutMillis) {
+		return callAsync("GET", path, queryParams, null, clazz, timeoutMillis);
+	}
+	public <T> CompletableFuture<WsResponse<T>> getAsync(String path, Class<T> clazz, Map<String,String> queryParams) {
+		return getAsync(path, clazz, queryParams, 0);
+	}
+	public <T> CompletableFuture<WsResponse<T>> getAsync(String path, Class<T> clazz) {
+		return getAsync(path, clazz, new HashMap<String, String>(), 0);
+	}
+	
+	public <T> CompletableFuture<WsResponse<T>> postAsync(String path, Object postObj, Class<T> clazz, long timeoutMillis) {
+		return callAsync("POST", path, new HashMap<String, String>(), postObj, clazz, timeoutMillis);
+	}
+	public <T> CompletableFuture<WsResponse<T>> postAsync(String path, Object postObj, Class<T> clazz) {
+		return postAsync(path, postObj, clazz, 0);
+	}
+	
+	public <T> CompletableFuture<WsResponse<T>> putAsync(String path, Object postObj, Class<T> clazz, long timeoutMillis) {
+		return callAsync("PUT", path, new HashMap<String, String>(), postObj, clazz, timeoutMillis);
+	}
+	public <T> CompletableFuture<WsResponse<T>> putAsync(String path, Object postObj, Class<T> clazz) {
+		return putAsync(path, postObj, clazz, 0);
+	}
+	
+	public <T> CompletableFuture<WsResponse<T>> deleteAsync(String path, Class<T> clazz, long timeoutMillis) {
+		return callAsync("DELETE", path, new HashMap<String, String>(), null, clazz, timeoutMillis);
+	}
+	public <T> CompletableFuture<WsResponse<T>> deleteAsync(String path, Class<T> clazz) {
+		return deleteAsync(path, clazz, 0);
+	}
+	
+	/**
+	 * Runs the call on the async executor. The future fails with the WsRestException of an error
+	 * response, and with a TimeoutException if the call takes longer than timeoutMillis, which
+	 * is also applied to the connection as its connect and read timeout.
+	 * 
+	 * Cancelling the future, or its timing out, closes the connection if the response has
+	 * arrived. A call still waiting for its response is bounded by the read timeout.
+	 */
+	private <T> CompletableFuture<WsResponse<T>> callAsync(final String method, final String path, final Map<String,String> queryParams,
+			final Object postObj, final Class<T> clazz, final long timeoutMillis) {
+		final CompletableFuture<WsResponse<T>> future = new CompletableFuture<WsResponse<T>>();
+		final AtomicReference<ClientResponse> inFlight = new AtomicReference<ClientResponse>();
+		try {
+			asyncExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if(future.isDone()){
+						// cancelled or timed out before it started
+						return;
+					}
+					try {
+						future.complete(call(method, path, queryParams, postObj, clazz, timeoutMillis, inFlight));
+					}
+					catch (WsRestException e) {
+						future.completeExceptionally(e);
+					}
+					catch (ClientHandlerException e) {
+						if((timeoutMillis > 0) && (e.getCause() instanceof SocketTimeoutException)){
+							// the read timeout can fire just before the future's own timeout
+							TimeoutException timeout = new TimeoutException("Call to " + path + " timed out after " + timeoutMillis + "ms");
+							timeout.initCause(e);
+							future.completeExceptionally(timeout);
+						}
+						else{
+							future.completeExceptionally(e);
+						}
+					}
+					catch (RuntimeException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		if(timeoutMillis > 0){
+			future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		future.whenComplete(new BiConsumer<WsResponse<T>, Throwable>() {
+			@Override
+			public void accept(WsResponse<T> result, Throwable failure) {
+				ClientResponse response = inFlight.get();
+				if((failure != null) && (response != null)){
+					response.close();
+				}
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Joins calls made in parallel, for fanning out to several services
+	 * 
+	 * @return a future of the results in the order of the calls, which fails if any call fails
+	 */
+	public static <T> CompletableFuture<List<T>> joinAll(final List<? extends CompletableFuture<? extends T>> calls) {
+		return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[calls.size()])).thenApply(new Function<Void, List<T>>() {
+			@Override
+			public List<T> apply(Void ignored) {
+				List<T> results = new ArrayList<T>(calls.size());
+				for(CompletableFuture<? extends T> call : calls){
+					results.add(call.join());
+				}
+				return results;
+			}
+		});
+	}
+	
+	/**
+	 * Gets a WsResponse wrapping a WsArrayWrapper, and iterates over the elements of its array
+	 * as they are parsed from the connection, without holding the whole array in memory. The
+	 * connection is closed when iteration ends; close the iterator if it is abandoned early.
+	 */
+	public <T> JsonArrayIterator<T> getArray(String path, Class<T> elementClass, Map<String,String> queryParams) throws WsRestException {
+		ClientResponse response = getResource(path,queryParams).get(ClientResponse.class);
+		storeCookies(response);
+		JsonParser parser = null;
 		try {
-			JsonFactory factory = objectMapper.getJsonFactory();
-			JsonParser jp = factory.createJsonParser(wsResponseJson);
-			JsonNode node = objectMapper.readTree(jp);
-			JsonNode statusNode = node.get("statusCode");
-			
-			if(statusNode.getTextValue().equals("OK")){
-				WsResponse<T> wsResponse = JsonHelper.fromJson(wsResponseJson, javaType);
-				return wsResponse;				
+			parser = mapperFor(response).getJsonFactory().createJsonParser(response.getEntityInputStream());
+			WsResponseDecoder.Envelope envelope = WsResponseDecoder.readEnvelope(parser);
+			if(!envelope.isOk()){
+				throw new WsRestException(envelope.readError());
+			}
+			if(envelope.data == null){
+				throw new WsRuntimeException(null, "Response has no responseData");
 			}
-			else{
-				JavaType errorType = objectMapper.getTypeFactory().constructParametricType(WsResponse.class, WsError.class);
-				WsResponse<WsError> error = JsonHelper.fromJson(wsResponseJson, errorType);
-				throw new WsRestException(error.getResponseData());			
+			if(envelope.data != parser){
+				// the data was buffered, so the connection is no longer needed
+				parser.close();
+			}
+			return JsonHelper.iterateArray(envelope.data, elementClass, "array");
+		} catch (IOException e) {
+			closeQuietly(parser, response);
+			throw new WsRuntimeException(null,e.getClass().getName());
+		} catch (WsRestException e) {
+			closeQuietly(parser, response);
+			throw e;
+		} catch (RuntimeException e) {
+			closeQuietly(parser, response);
+			throw e;
+		}
+	}
+	public <T> JsonArrayIterator<T> getArray(String path, Class<T> elementClass) throws WsRestException {
+		return getArray(path, elementClass, new HashMap<String, String>());
+	}
+	
+	private void closeQuietly(JsonParser parser, ClientResponse response) {
+		try {
+			if(parser != null){
+				parser.close();
 			}
+		} catch (IOException e) {
+			log.debug("Error closing response parser", e);
+		}
+		response.close();
+	}
+	
+	private void storeCookies(ClientResponse response) {
+		cookies.update(response.getCookies());
+	}
+	
+	private <T> WsResponse<T> processResponse(ClientResponse response, Class<T> clazz) throws WsRestException {
+		storeCookies(response);
+		try {
+			// decoded in one pass straight from the connection
+			JsonParser parser = mapperFor(response).getJsonFactory().createJsonParser(response.getEntityInputStream());
+			return WsResponseDecoder.decode(parser, clazz);
 		} catch (JsonParseException e) {
 			throw new WsRuntimeException(null,e.getClass().getName());
 		} catch (IOException e) {
 			throw new WsRuntimeException(null,e.getClass().getName());
+		} finally {
+			response.close();
 		}
 	}
 
 	public File postAndDownloadFile(String path, Object postObj, File downloadDir, ArrayList<String> acceptTypes) {
-		String postObjJson = JsonHelper.toJson(postObj);
-		log.debug("POST JSON " + postObjJson);
+		if(log.isDebugEnabled()){
+			log.debug("POST JSON " + JsonHelper.toJson(postObj));
+		}
+		byte[] postObjJson = encodeBody(postObj);
 		
 		WebResource.Builder builder = jerseyClient.resource(baseUrl + path).type(MediaType.APPLICATION_JSON_TYPE);
 		builder = addAcceptTypes(builder, acceptTypes);
 		builder = addCookies(builder);
 		
 		ClientResponse response = getResource(path,new HashMap<String, String>()).post(ClientResponse.class, postObjJson);
-		log.debug("status=" + response.getStatus());
-		String receivedType = response.getHeaders().getFirst("Content-Type");
-		if(receivedType == null){
-			log.error("Null Content-Type returned from the server");
-			return null;
-		}
-		else if (receivedType.equalsIgnoreCase("application/json")){
-			log.error("Failed to download file with error response " + response.getEntity(String.class));
-			return null;
-		}
-		else {
-			String contentDisposition = response.getHeaders().getFirst("Content-Disposition");
-			
-			String fileName = null;
-			if((contentDisposition != null) && (contentDisposition.startsWith("attachment"))){
-				String[] split1 = contentDisposition.split(";");
-				String[] split2 = split1[1].split("=");
-				fileName = split2[1].trim();
-				if(fileName.startsWith("\"")) {
-					fileName = fileName.substring(1, fileName.length()-1);
-				}
+		// closed on every path, so that the connection lease is always given back
+		try {
+			log.debug("status=" + response.getStatus());
+			String receivedType = response.getHeaders().getFirst("Content-Type");
+			if(receivedType == null){
+				log.error("Null Content-Type returned from the server");
+				return null;
 			}
-			else {
-				fileName = UUID.randomUUID().toString();
+			else if (receivedType.equalsIgnoreCase("application/json")){
+				log.error("Failed to download file with error response " + response.getEntity(String.class));
+				return null;
 			}
-			File fileToSave = new File(FilenameUtils.concat(downloadDir.getPath(), fileName));
-			InputStream inputStream = response.getEntityInputStream();
-						
-			try {
-				FileUtils.copyInputStreamToFile(inputStream, fileToSave);
-				return fileToSave;
+			else {
+				String contentDisposition = response.getHeaders().getFirst("Content-Disposition");
+				
+				String fileName = null;
+				if((contentDisposition != null) && (contentDisposition.startsWith("attachment"))){
+					String[] split1 = contentDisposition.split(";");
+					String[] split2 = split1[1].split("=");
+					fileName = split2[1].trim();
+					if(fileName.startsWith("\"")) {
+						fileName = fileName.substring(1, fileName.length()-1);
+					}
+				}
+				else {
+					fileName = UUID.randomUUID().toString();
+				}
+				File fileToSave = new File(FilenameUtils.concat(downloadDir.getPath(), fileName));
+				InputStream inputStream = response.getEntityInputStream();
+							
+				try {
+					FileUtils.copyInputStreamToFile(inputStream, fileToSave);
+					return fileToSave;
+				}
+				catch(IOException e) {
+					log.error(StringHelper.stackTraceToString(e));
+					return null;
+				}			
 			}
-			catch(IOException e) {
-				log.error(StringHelper.stackTraceToString(e));
-				return null;
-			}			
 		}
+		finally {
+			response.close();
+		}
+	}
+	
+	public Executor getAsyncExecutor() {
+		return asyncExecutor;
+	}
+	
+	/**
+	 * Executor for the async calls. By default a cached pool of daemon threads shared by all
+	 * clients. Each call holds a thread for its duration, so newVirtualThreadExecutor suits
+	 * fanning out to many slow services where the JDK has virtual threads.
+	 */
+	public void setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+	
+	public WsResilience getResilience() {
+		return resilience;
+	}
+	
+	/**
+	 * Sets whether gzip responses are accepted and decompressed, and whether request bodies
+	 * are sent compressed, which needs a server that decompresses them such as one with
+	 * GzipContentEncodingFilter. Compressing requests also accepts gzip responses. Both are off
+	 * by default.
+	 */
+	public void setCompression(boolean gzipResponses, boolean gzipRequests) {
+		if(gzipRequests){
+			this.gzipRequests = Boolean.TRUE;
+		}
+		else if(gzipResponses){
+			this.gzipRequests = Boolean.FALSE;
+		}
+		else{
+			this.gzipRequests = null;
+		}
+	}
+	
+	public HttpResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Cache for the responses of get and getAsync, or null for none. One cache may be shared
+	 * by several clients.
+	 */
+	public void setResponseCache(HttpResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+	
+	public boolean isCollapseGets() {
+		return collapseGets;
+	}
+	
+	/**
+	 * Whether concurrent identical GETs, with the same path, query parameters and class, are
+	 * collapsed into one request whose WsResponse is shared by all the callers, so it must
+	 * not be modified. Off by default.
+	 */
+	public void setCollapseGets(boolean collapseGets) {
+		this.collapseGets = collapseGets;
+	}
+	
+	/**
+	 * @return the number of GETs answered by an identical GET already in flight
+	 */
+	public long getNumCollapsedGets() {
+		return numCollapsedGets.sum();
+	}
+	
+	/**
+	 * Retries, hedging and circuit breaking for the calls of this client, or null for none.
+	 * Hedged requests run on the hedge executor of the policy.
+	 */
+	public void setResilience(WsResilience resilience) {
+		this.resilience = resilience;
+	}
+	
+	/**
+	 * @return an executor starting a virtual thread per call
+	 * @throws UnsupportedOperationException if the JDK has no virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// looked up by name, since virtual threads are newer than the JDKs this builds for
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("Virtual threads need JDK 21 or later");
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("Virtual threads are not available", e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads are not available", e.getCause());
+		}
+	}
+	
+	public boolean isSmileEnabled() {
+		return smileEnabled;
+	}
+	
+	/**
+	 * Sends requests in the binary Smile encoding and asks for Smile responses, which are
+	 * smaller and cheaper to parse than JSON. JSON responses are still accepted, so servers
+	 * without Smile support keep working. Needs jackson-smile on the classpath.
+	 */
+	public void setSmileEnabled(boolean smileEnabled) {
+		if(smileEnabled && !JsonHelper.isSmileAvailable()){
+			throw new IllegalStateException("Smile encoding needs jackson-smile on the classpath");
+		}
+		this.smileEnabled = smileEnabled;
 	}
 	
 	private WebResource.Builder addCookies(WebResource.Builder builder) {
-		Set<String> cookieNames = cookies.keySet();
-		for (String cookieName : cookieNames) {
-			builder = builder.cookie(cookies.get(cookieName));
+		String cookieHeader = cookies.getHeader();
+		if(cookieHeader != null){
+			builder = builder.header("Cookie", cookieHeader);
 		}
 		return builder;		
 	}
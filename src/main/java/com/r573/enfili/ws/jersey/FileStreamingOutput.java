@@ -0,0 +1,230 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.jersey;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.Date;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.core.header.HttpDateFormat;
+
+/**
+ * Streams a file, or a byte range of it, as the response body.
+ * 
+ * The bytes are copied through a pooled 64 KB buffer, so a download allocates nothing per
+ * chunk. Zero-copy with FileChannel.transferTo is not available here: the servlet API only
+ * hands out the response as an OutputStream, never as a socket channel, so the JDK would copy
+ * through the heap anyway.
+ * 
+ * Use response(...) to build the response for a request, which honours Range and If-Range
+ * with 206 Partial Content so that clients can resume or parallelise downloads.
+ * 
+ * @author ryanho
+ *
+ */
+public class FileStreamingOutput implements StreamingOutput {
+	private static final Logger log = LoggerFactory.getLogger(FileStreamingOutput.class);
+	
+	public static final int STATUS_PARTIAL_CONTENT = 206;
+	public static final int STATUS_RANGE_NOT_SATISFIABLE = 416;
+	
+	private final File file;
+	private final long offset;
+	private final long length;
+
+	public FileStreamingOutput(File file) {
+		this(file, 0, file.length());
+	}
+	
+	/**
+	 * Streams length bytes of the file, starting at offset
+	 */
+	public FileStreamingOutput(File file, long offset, long length) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException, WebApplicationException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long written = copy(channel, out);
+			if(written < length){
+				log.warn("File " + file + " ended " + (length - written) + " bytes early while streaming");
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private long copy(FileChannel channel, OutputStream out) throws IOException {
+		byte[] buf = StreamBuffers.acquire();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(buf);
+			long position = offset;
+			long end = offset + length;
+			while(position < end){
+				buffer.clear();
+				buffer.limit((int) Math.min(buf.length, end - position));
+				int bytesRead = channel.read(buffer, position);
+				if(bytesRead < 0){
+					break;
+				}
+				out.write(buf, 0, bytesRead);
+				position += bytesRead;
+			}
+			return position - offset;
+		}
+		finally {
+			StreamBuffers.release(buf);
+		}
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * Builds the response for a download of the file, honouring the Range and If-Range headers
+	 * of the request
+	 */
+	public static Response.ResponseBuilder response(File file, MediaType type, HttpHeaders requestHeaders) {
+		return response(file, type, requestHeaders.getRequestHeaders().getFirst("Range"), requestHeaders.getRequestHeaders().getFirst("If-Range"));
+	}
+	
+	/**
+	 * Builds the response for a download of the file. A single byte range is answered with
+	 * 206 Partial Content, or 416 if it is outside the file. The range is ignored, and the
+	 * whole file sent, if it cannot be parsed, if several ranges are asked for, or if If-Range
+	 * does not match the file's current ETag or Last-Modified.
+	 * 
+	 * @param range the Range header of the request, or null
+	 * @param ifRange the If-Range header of the request, or null
+	 */
+	public static Response.ResponseBuilder response(File file, MediaType type, String range, String ifRange) {
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(fileLength) + "\"";
+		
+		long[] bounds = null;
+		if((range != null) && ((ifRange == null) || ifRangeMatches(ifRange.trim(), etag, lastModified))){
+			bounds = parseRange(range, fileLength);
+		}
+		
+		Response.ResponseBuilder builder;
+		if(bounds == null){
+			builder = Response.ok(new FileStreamingOutput(file, 0, fileLength), type)
+				.header("Content-Length", Long.valueOf(fileLength));
+		}
+		else if(bounds.length == 0){
+			return Response.status(STATUS_RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + fileLength).header("Accept-Ranges", "bytes");
+		}
+		else{
+			long rangeLength = bounds[1] - bounds[0] + 1;
+			builder = Response.status(STATUS_PARTIAL_CONTENT).type(type).entity(new FileStreamingOutput(file, bounds[0], rangeLength))
+				.header("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + fileLength)
+				.header("Content-Length", Long.valueOf(rangeLength));
+		}
+		return builder.header("Accept-Ranges", "bytes").header("ETag", etag).lastModified(new Date(lastModified));
+	}
+	
+	/**
+	 * A strong comparison, as the spec asks for: the ETag must be identical, and a date must
+	 * be the file's Last-Modified to the second
+	 */
+	private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+			return ifRange.equals(etag);
+		}
+		try {
+			return HttpDateFormat.readDate(ifRange).getTime() / 1000L == lastModified / 1000L;
+		}
+		catch (ParseException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the first and last byte of a single byte range, an empty array if the range
+	 * cannot be satisfied, or null if the header should be ignored
+	 */
+	static long[] parseRange(String range, long fileLength) {
+		range = range.trim();
+		if(!range.startsWith("bytes=") || (range.indexOf(',') >= 0)){
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if(dash < 0){
+			return null;
+		}
+		try {
+			long first;
+			long last;
+			if(dash == 0){
+				// the last n bytes
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if(suffix <= 0){
+					return new long[0];
+				}
+				first = Math.max(0, fileLength - suffix);
+				last = fileLength - 1;
+			}
+			else{
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String lastSpec = spec.substring(dash + 1).trim();
+				last = lastSpec.isEmpty() ? fileLength - 1 : Math.min(Long.parseLong(lastSpec), fileLength - 1);
+				if(last < first){
+					return (lastSpec.isEmpty() || (first >= fileLength)) ? new long[0] : null;
+				}
+			}
+			if((first >= fileLength) || (fileLength == 0)){
+				return new long[0];
+			}
+			return new long[] { first, last };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
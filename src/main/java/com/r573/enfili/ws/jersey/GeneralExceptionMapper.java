@@ -17,7 +17,6 @@
  */
 package com.r573.enfili.ws.jersey;
 
-import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -28,9 +27,6 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.r573.enfili.common.doc.json.JsonHelper;
-import com.r573.enfili.ws.data.WsError;
-import com.r573.enfili.ws.data.WsResponse;
 
 @Provider
 public class GeneralExceptionMapper implements ExceptionMapper<Exception> {
@@ -40,8 +36,6 @@ public class GeneralExceptionMapper implements ExceptionMapper<Exception> {
 	@Override
 	public Response toResponse(Exception e) {
 		log.error(ExceptionUtils.getStackTrace(e));
-		GenericEntity<String> entity = new GenericEntity<String>(JsonHelper.toJson(new WsResponse<WsError>(WsResponse.RESP_CODE_ERROR, new WsError(WsError.GENERAL_ERROR, "General Error")))) {
-		};
-		return Response.status(Status.OK).entity(entity).type(MediaType.APPLICATION_JSON).build();
+		return Response.status(Status.OK).entity(WsResponseWriter.GENERAL_ERROR_RESPONSE).type(MediaType.APPLICATION_JSON).build();
 	}
 }
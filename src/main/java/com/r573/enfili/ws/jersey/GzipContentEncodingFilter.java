@@ -0,0 +1,285 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.jersey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+
+/**
+ * Compresses response bodies with gzip or deflate when the request accepts it, and
+ * decompresses request bodies sent with a gzip or deflate Content-Encoding. Register it as
+ * both a request and a response filter.
+ * 
+ * The body is streamed through the compressor as it is written. Only its first threshold
+ * bytes are buffered, so a response smaller than the threshold is sent as it is, where
+ * compressing would cost more CPU than it saves on the wire. Flushes are passed through the
+ * compressor, so a streamed response still reaches the client batch by batch.
+ * 
+ * A compressed response loses any Content-Length set by the resource, and its ETag gets the
+ * encoding as a suffix. Partial content is never compressed, since its Content-Range
+ * describes the identity bytes.
+ * 
+ * @author ryanho
+ *
+ */
+public class GzipContentEncodingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	public static final int DEFAULT_THRESHOLD = 1024;
+	
+	private static final String GZIP = "gzip";
+	private static final String DEFLATE = "deflate";
+	private static final String CONTENT_RANGE = "Content-Range";
+	private static final int STATUS_PARTIAL_CONTENT = 206;
+	
+	private final int threshold;
+	
+	public GzipContentEncodingFilter() {
+		this(DEFAULT_THRESHOLD);
+	}
+	
+	/**
+	 * @param threshold the size in bytes from which responses are compressed
+	 */
+	public GzipContentEncodingFilter(int threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	public ContainerRequest filter(ContainerRequest request) {
+		String encoding = request.getRequestHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+		if(encoding == null){
+			return request;
+		}
+		encoding = encoding.trim();
+		try {
+			if(encoding.equalsIgnoreCase(GZIP) || encoding.equalsIgnoreCase("x-gzip")){
+				request.setEntityInputStream(new GZIPInputStream(request.getEntityInputStream()));
+			}
+			else if(encoding.equalsIgnoreCase(DEFLATE)){
+				request.setEntityInputStream(new InflaterInputStream(request.getEntityInputStream()));
+			}
+			else{
+				return request;
+			}
+		} catch (IOException e) {
+			throw new WebApplicationException(e, Status.BAD_REQUEST);
+		}
+		request.getRequestHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+		return request;
+	}
+
+	@Override
+	public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+		if((response.getEntity() == null) || request.getMethod().equals("HEAD") || !isCompressible(response.getMediaType())){
+			return response;
+		}
+		MultivaluedMap<String, Object> headers = response.getHttpHeaders();
+		if(headers.containsKey(HttpHeaders.CONTENT_ENCODING)){
+			return response;
+		}
+		if((response.getStatus() == STATUS_PARTIAL_CONTENT) || headers.containsKey(CONTENT_RANGE)){
+			// the range is of the identity bytes, which compressing would not match
+			return response;
+		}
+		// the response depends on Accept-Encoding whether or not it is compressed
+		headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		String encoding = chooseEncoding(request.getRequestHeaders().getFirst(HttpHeaders.ACCEPT_ENCODING));
+		if(encoding != null){
+			response.setContainerResponseWriter(new Adapter(response.getContainerResponseWriter(), encoding, threshold));
+		}
+		return response;
+	}
+	
+	private static boolean isCompressible(MediaType type) {
+		if(type == null){
+			return true;
+		}
+		String subtype = type.getSubtype().toLowerCase();
+		return type.getType().equalsIgnoreCase("text") || subtype.contains("json") || subtype.contains("xml")
+			|| subtype.contains("javascript") || subtype.contains("smile");
+	}
+	
+	/**
+	 * @return gzip or deflate, whichever the Accept-Encoding header allows, preferring gzip,
+	 * or null if it allows neither
+	 */
+	static String chooseEncoding(String acceptEncoding) {
+		if(acceptEncoding == null){
+			return null;
+		}
+		boolean gzip = false;
+		boolean deflate = false;
+		for(String coding : acceptEncoding.split(",")){
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			boolean refused = false;
+			for(int i=1; i<params.length; i++){
+				String param = params[i].trim();
+				if(param.startsWith("q=")){
+					try {
+						refused = Double.parseDouble(param.substring(2).trim()) <= 0.0d;
+					}
+					catch (NumberFormatException e) {
+						refused = true;
+					}
+				}
+			}
+			if(refused){
+				continue;
+			}
+			if(name.equals(GZIP) || name.equals("x-gzip") || name.equals("*")){
+				gzip = true;
+			}
+			else if(name.equals(DEFLATE)){
+				deflate = true;
+			}
+		}
+		return gzip ? GZIP : (deflate ? DEFLATE : null);
+	}
+	
+	/**
+	 * @return the ETag of the compressed representation, which must differ from that of the
+	 * identity one: the encoding is added inside the quotes, keeping a weak tag weak
+	 */
+	static String encodedEtag(String etag, String encoding) {
+		if(etag.endsWith("\"")){
+			return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+		}
+		return etag + "-" + encoding;
+	}
+	
+	/**
+	 * Holds back the status and headers until threshold bytes have been written or the
+	 * response is finished, then sends the body compressed or as it is
+	 */
+	private static class Adapter implements ContainerResponseWriter {
+		private final ContainerResponseWriter writer;
+		private final String encoding;
+		private final int threshold;
+		private ContainerResponse response;
+		private long contentLength;
+		private ByteArrayOutputStream buffer;
+		private OutputStream out;
+		private DeflaterOutputStream compressor;
+
+		Adapter(ContainerResponseWriter writer, String encoding, int threshold) {
+			this.writer = writer;
+			this.encoding = encoding;
+			this.threshold = threshold;
+		}
+
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+			this.contentLength = contentLength;
+			this.response = response;
+			if((contentLength >= 0) && (contentLength < threshold)){
+				out = writer.writeStatusAndHeaders(contentLength, response);
+				return out;
+			}
+			buffer = new ByteArrayOutputStream(Math.max(threshold, 64));
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if(out == null){
+						if(buffer.size() + len < threshold){
+							buffer.write(b, off, len);
+							return;
+						}
+						startCompressing();
+					}
+					out.write(b, off, len);
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					if(out != null){
+						out.flush();
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					finishBody();
+				}
+			};
+		}
+		
+		private void startCompressing() throws IOException {
+			MultivaluedMap<String, Object> headers = response.getHttpHeaders();
+			headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+			// any length set by the resource is that of the identity body
+			headers.remove(HttpHeaders.CONTENT_LENGTH);
+			Object etag = headers.getFirst(HttpHeaders.ETAG);
+			if(etag != null){
+				headers.putSingle(HttpHeaders.ETAG, encodedEtag(ContainerResponse.getHeaderValue(etag), encoding));
+			}
+			OutputStream target = writer.writeStatusAndHeaders(-1, response);
+			// sync flush, so that flushing the response sends what has been compressed so far
+			compressor = encoding.equals(GZIP) ? new GZIPOutputStream(target, 8192, true) : new DeflaterOutputStream(target, true);
+			out = compressor;
+			buffer.writeTo(compressor);
+			buffer = null;
+		}
+		
+		private void finishBody() throws IOException {
+			if(out == null){
+				// smaller than the threshold, so it goes out as it is
+				byte[] body = buffer.toByteArray();
+				buffer = null;
+				out = writer.writeStatusAndHeaders((contentLength >= 0) ? contentLength : body.length, response);
+				out.write(body);
+			}
+			else if(compressor != null){
+				compressor.finish();
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if((out == null) && (buffer != null)){
+				finishBody();
+			}
+			else if(compressor != null){
+				compressor.finish();
+			}
+			writer.finish();
+		}
+	}
+}
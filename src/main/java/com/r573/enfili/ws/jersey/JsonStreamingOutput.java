@@ -0,0 +1,168 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.jersey;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.r573.enfili.common.doc.json.JsonHelper;
+import com.r573.enfili.ws.data.WsResponse;
+
+/**
+ * Streams the items of an iterator as the response body while they are produced, so that
+ * memory stays flat however large the result set is and the first bytes go out at once.
+ * 
+ * wsArray writes the same JSON as a WsResponse wrapping a WsArrayWrapper, which
+ * WsRestClient.getArray reads element by element. ndjson writes one item per line, to be
+ * served as APPLICATION_NDJSON. The response is flushed after each batch of items.
+ * 
+ * An iterator or stream that is Closeable, such as MorphiaDbManager.iterate, is closed
+ * when writing ends. The status has been sent by the time the items are iterated, so a
+ * failure part way cuts the response short rather than turning it into an error response.
+ * 
+ * @author ryanho
+ *
+ */
+public class JsonStreamingOutput implements StreamingOutput {
+	public static final String APPLICATION_NDJSON = "application/x-ndjson";
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	
+	private static final Logger log = LoggerFactory.getLogger(JsonStreamingOutput.class);
+	
+	private final Iterator<?> items;
+	private final boolean ndjson;
+	private final int batchSize;
+	private final Closeable resource;
+	
+	/**
+	 * @param ndjson true for one item per line, false for a WsResponse wrapped array
+	 * @param resource closed when writing ends, or null
+	 */
+	public JsonStreamingOutput(Iterator<?> items, boolean ndjson, int batchSize, Closeable resource) {
+		this.items = items;
+		this.ndjson = ndjson;
+		this.batchSize = batchSize;
+		this.resource = resource;
+	}
+	
+	public static JsonStreamingOutput wsArray(Iterator<?> items) {
+		return new JsonStreamingOutput(items, false, DEFAULT_BATCH_SIZE, closeableOf(items));
+	}
+	public static JsonStreamingOutput wsArray(Stream<?> items) {
+		return new JsonStreamingOutput(items.iterator(), false, DEFAULT_BATCH_SIZE, closeableOf(items));
+	}
+	
+	public static JsonStreamingOutput ndjson(Iterator<?> items) {
+		return new JsonStreamingOutput(items, true, DEFAULT_BATCH_SIZE, closeableOf(items));
+	}
+	public static JsonStreamingOutput ndjson(Stream<?> items) {
+		return new JsonStreamingOutput(items.iterator(), true, DEFAULT_BATCH_SIZE, closeableOf(items));
+	}
+	
+	private static Closeable closeableOf(Iterator<?> items) {
+		return (items instanceof Closeable) ? (Closeable) items : null;
+	}
+	
+	private static Closeable closeableOf(final Stream<?> items) {
+		return new Closeable() {
+			@Override
+			public void close() {
+				items.close();
+			}
+		};
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException, WebApplicationException {
+		// the mapper flushes after every value, which would send a chunk per item
+		OutputStream batched = new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+			
+			@Override
+			public void flush() {
+			}
+		};
+		JsonGenerator generator = JsonHelper.getObjectMapper().getJsonFactory().createJsonGenerator(batched, JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		try {
+			if(ndjson){
+				generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+			}
+			else{
+				generator.writeStartObject();
+				generator.writeStringField("statusCode", WsResponse.RESP_CODE_OK);
+				generator.writeObjectFieldStart("responseData");
+				generator.writeArrayFieldStart("array");
+				// sent before the first item, which may take a while to come
+				flush(generator, out);
+			}
+			
+			int numItems = 0;
+			while(items.hasNext()){
+				JsonHelper.toJson(items.next(), generator);
+				numItems++;
+				if((numItems % batchSize) == 0){
+					flush(generator, out);
+				}
+			}
+			
+			if(ndjson){
+				if(numItems > 0){
+					generator.writeRaw('\n');
+				}
+			}
+			else{
+				generator.writeEndArray();
+				generator.writeEndObject();
+				generator.writeEndObject();
+			}
+			flush(generator, out);
+		}
+		catch (RuntimeException e) {
+			log.error("Streaming response failed part way", e);
+			throw e;
+		}
+		finally {
+			generator.close();
+			if(resource != null){
+				resource.close();
+			}
+		}
+	}
+	
+	private static void flush(JsonGenerator generator, OutputStream out) throws IOException {
+		generator.flush();
+		out.flush();
+	}
+}
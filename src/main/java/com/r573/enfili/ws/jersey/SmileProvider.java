@@ -0,0 +1,89 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.jersey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import com.r573.enfili.common.doc.json.JsonHelper;
+
+/**
+ * Reads and writes entities in the binary Smile encoding of JSON, for clients that send or
+ * accept application/x-jackson-smile. Resources list the type next to JSON in @Produces and
+ * @Consumes, and Jersey picks the encoding from the request headers, so browsers and other
+ * clients asking for JSON keep getting JSON.
+ * 
+ * Registered with the server like the exception mappers, and with a client through its
+ * ClientConfig. Does nothing unless jackson-smile is on the classpath.
+ * 
+ * @author ryanho
+ *
+ */
+@Provider
+@Consumes(SmileProvider.APPLICATION_SMILE)
+@Produces(SmileProvider.APPLICATION_SMILE)
+public class SmileProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+	public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+	public static final MediaType APPLICATION_SMILE_TYPE = new MediaType("application", "x-jackson-smile");
+	
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return isSmile(mediaType);
+	}
+	
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException, WebApplicationException {
+		// the container owns the entity stream, so do not let the parser close it
+		return JsonHelper.fromSmile(new CloseShieldInputStream(entityStream), JsonHelper.constructType(genericType));
+	}
+	
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return isSmile(mediaType);
+	}
+	
+	@Override
+	public long getSize(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return -1;
+	}
+	
+	@Override
+	public void writeTo(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+		JsonHelper.toSmile(t, entityStream);
+	}
+	
+	private static boolean isSmile(MediaType mediaType) {
+		return (mediaType != null) && APPLICATION_SMILE_TYPE.isCompatible(mediaType) && !mediaType.isWildcardType() && !mediaType.isWildcardSubtype() && JsonHelper.isSmileAvailable();
+	}
+}
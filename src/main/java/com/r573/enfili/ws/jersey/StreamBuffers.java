@@ -0,0 +1,55 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.jersey;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of copy buffers for the streaming outputs, so that a download does not
+ * allocate its buffer, and large downloads do not churn the young generation
+ */
+final class StreamBuffers {
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED = 32;
+	
+	private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger numPooled = new AtomicInteger();
+	
+	private StreamBuffers() {
+	}
+	
+	static byte[] acquire() {
+		byte[] buffer = pool.poll();
+		if(buffer == null){
+			return new byte[BUFFER_SIZE];
+		}
+		numPooled.decrementAndGet();
+		return buffer;
+	}
+	
+	static void release(byte[] buffer) {
+		if(numPooled.incrementAndGet() <= MAX_POOLED){
+			pool.offer(buffer);
+		}
+		else{
+			// enough pooled already, let it be collected
+			numPooled.decrementAndGet();
+		}
+	}
+}
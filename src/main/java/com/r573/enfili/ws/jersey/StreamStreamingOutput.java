@@ -24,8 +24,15 @@ import java.io.OutputStream;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
 
+/**
+ * Streams an input stream as the response body, through a pooled buffer. Use
+ * FileStreamingOutput for files.
+ * 
+ * The stream is written after the resource method has returned, so this takes ownership of
+ * it: the stream is closed once it has been written, or if writing fails, and the caller must
+ * not close or reuse it.
+ */
 public class StreamStreamingOutput implements StreamingOutput {
-	private static final int CHUNK_SIZE = 1024;
 	private InputStream sourceStream;
 
 	public StreamStreamingOutput(InputStream sourceStream) {
@@ -34,17 +41,11 @@ public class StreamStreamingOutput implements StreamingOutput {
 
 	@Override
 	public void write(OutputStream out) throws IOException, WebApplicationException {
+		byte[] buf = StreamBuffers.acquire();
 		try {
-			byte[] buf = new byte[CHUNK_SIZE];
 			int bytesRead = 0;
 			while ((bytesRead = sourceStream.read(buf)) != -1) {
-				if (bytesRead < CHUNK_SIZE) {
-					byte[] buf2 = new byte[bytesRead];
-					System.arraycopy(buf, 0, buf2, 0, bytesRead);
-					buf = buf2;
-				}
-				out.write(buf);
-				buf = new byte[CHUNK_SIZE];
+				out.write(buf, 0, bytesRead);
 			}
 			out.close();
 		}
@@ -52,6 +53,10 @@ public class StreamStreamingOutput implements StreamingOutput {
 			e.printStackTrace();
 			throw new RuntimeException(e);
 		}
+		finally {
+			StreamBuffers.release(buf);
+			sourceStream.close();
+		}
 	}
 
 }
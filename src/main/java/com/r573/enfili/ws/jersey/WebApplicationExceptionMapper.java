@@ -18,7 +18,6 @@
 package com.r573.enfili.ws.jersey;
 
 import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -28,10 +27,7 @@ import javax.ws.rs.ext.Provider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.r573.enfili.common.doc.json.JsonHelper;
 import com.r573.enfili.common.text.StringHelper;
-import com.r573.enfili.ws.data.WsError;
-import com.r573.enfili.ws.data.WsResponse;
 
 @Provider
 public class WebApplicationExceptionMapper implements ExceptionMapper<WebApplicationException> {
@@ -46,9 +42,7 @@ public class WebApplicationExceptionMapper implements ExceptionMapper<WebApplica
 			return e.getResponse();
 		}
 		else{
-			GenericEntity<String> entity = new GenericEntity<String>(JsonHelper.toJson(new WsResponse<WsError>(WsResponse.RESP_CODE_ERROR, new WsError(WsError.GENERAL_ERROR, "General Error")))) {
-			};
-			return Response.status(Status.OK).entity(entity).type(MediaType.APPLICATION_JSON).build();			
+			return Response.status(Status.OK).entity(WsResponseWriter.GENERAL_ERROR_RESPONSE).type(MediaType.APPLICATION_JSON).build();			
 		}
 	}
 }
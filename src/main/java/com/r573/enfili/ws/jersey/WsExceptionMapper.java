@@ -1,6 +1,5 @@
 package com.r573.enfili.ws.jersey;
 
-import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -11,7 +10,6 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.r573.enfili.common.doc.json.JsonHelper;
 import com.r573.enfili.common.exception.WsException;
 import com.r573.enfili.ws.data.WsError;
 import com.r573.enfili.ws.data.WsResponse;
@@ -24,9 +22,7 @@ public class WsExceptionMapper implements ExceptionMapper<WsException> {
 	public Response toResponse(WsException e) {
 		log.warn(ExceptionUtils.getStackTrace(e));		
 		WsResponse<WsError> errorResp = new WsResponse<WsError>(WsResponse.RESP_CODE_ERROR, new WsError(e.getErrCode(), e.getErrDesc()));
-		String errorJson = JsonHelper.toJson(errorResp);
-		GenericEntity<String> respEntity = new GenericEntity<String>(errorJson) {};
-		return Response.status(Status.OK).entity(respEntity).type(MediaType.APPLICATION_JSON).build();
+		return Response.status(Status.OK).entity(errorResp).type(MediaType.APPLICATION_JSON).build();
 	}
 
 }
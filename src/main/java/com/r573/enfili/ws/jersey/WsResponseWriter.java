@@ -0,0 +1,79 @@
+/*
+ * Enfili
+ * Project hosted at https://github.com/ryanhosp/enfili/
+ * Copyright 2013 Ho Siaw Ping Ryan
+ *    
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.r573.enfili.ws.jersey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import com.r573.enfili.common.doc.json.JsonHelper;
+import com.r573.enfili.ws.data.WsError;
+import com.r573.enfili.ws.data.WsResponse;
+
+/**
+ * Writes WsResponse entities as JSON straight to the response stream through JsonHelper's
+ * shared mapper, so that resources and exception mappers can return the WsResponse itself
+ * instead of first turning it into a String.
+ * 
+ * The general error response never changes, so it is encoded once and written as bytes.
+ * Return GENERAL_ERROR_RESPONSE to use it.
+ * 
+ * @author ryanho
+ *
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class WsResponseWriter implements MessageBodyWriter<WsResponse<?>> {
+	/**
+	 * Shared instance, must not be modified
+	 */
+	public static final WsResponse<WsError> GENERAL_ERROR_RESPONSE = new WsResponse<WsError>(WsResponse.RESP_CODE_ERROR, new WsError(WsError.GENERAL_ERROR, "General Error"));
+	private static final byte[] GENERAL_ERROR_BYTES = JsonHelper.toJsonBytes(GENERAL_ERROR_RESPONSE);
+	
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return WsResponse.class.isAssignableFrom(type) && MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType);
+	}
+	
+	@Override
+	public long getSize(WsResponse<?> t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		if(t == GENERAL_ERROR_RESPONSE){
+			return GENERAL_ERROR_BYTES.length;
+		}
+		return -1;
+	}
+	
+	@Override
+	public void writeTo(WsResponse<?> t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+		if(t == GENERAL_ERROR_RESPONSE){
+			entityStream.write(GENERAL_ERROR_BYTES);
+		}
+		else{
+			JsonHelper.toJson(t, entityStream);
+		}
+	}
+}
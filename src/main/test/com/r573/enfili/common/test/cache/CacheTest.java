@@ -0,0 +1,542 @@
+package com.r573.enfili.common.test.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.r573.enfili.common.cache.invalidation.InMemoryInvalidationTransport;
+import com.r573.enfili.common.cache.invalidation.InvalidationBus;
+import com.r573.enfili.common.cache.simple.BulkCacheLoader;
+import com.r573.enfili.common.cache.simple.BulkGetResult;
+import com.r573.enfili.common.cache.simple.CacheCodec;
+import com.r573.enfili.common.cache.simple.CacheLoader;
+import com.r573.enfili.common.cache.simple.JsonCacheCodec;
+import com.r573.enfili.common.cache.simple.LongKeyedCache;
+import com.r573.enfili.common.cache.simple.SimpleInMemoryCache;
+import com.r573.enfili.common.cache.simple.Weigher;
+import com.sun.management.ThreadMXBean;
+
+public class CacheTest {
+	private static final int NUM_THREADS = 32;
+	private static final int NUM_OPS = 10000;
+	
+	@Test
+	public void putAndGet(){
+		SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("putAndGet");
+		cache.put("a", "A");
+		Assert.assertEquals("A", cache.get("a"));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals(2, cache.getNumGetRequests());
+		Assert.assertEquals(1, cache.getNumCacheHits());
+		Assert.assertEquals(1, cache.getNumCacheMisses());
+	}
+	
+	@Test
+	public void expiry() throws InterruptedException{
+		SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("expiry");
+		cache.put("lifespan", "A", 1L);
+		cache.put("fixed", "B", new Date(System.currentTimeMillis() + 1L));
+		cache.put("live", "C");
+		Thread.sleep(20);
+		Assert.assertNull(cache.get("lifespan"));
+		Assert.assertNull(cache.get("fixed"));
+		Assert.assertEquals("C", cache.get("live"));
+		Assert.assertEquals(1, cache.size());
+	}
+	
+	@Test
+	public void expiryWithoutReads() throws InterruptedException{
+		SimpleInMemoryCache<Integer> cache = new SimpleInMemoryCache<Integer>("expiryWithoutReads");
+		cache.start();
+		try {
+			for(int i=0; i<1000; i++){
+				cache.put(String.valueOf(i), i, 10L);
+			}
+			cache.put("fixed", -1, new Date(System.currentTimeMillis() + 10L));
+			cache.put("live", -2);
+			Thread.sleep(2500);
+			Assert.assertEquals(1, cache.size());
+			Assert.assertEquals(Integer.valueOf(-2), cache.get("live"));
+		}
+		finally {
+			cache.stop();
+		}
+	}
+	
+	@Test
+	public void concurrentAccess() throws InterruptedException{
+		final SimpleInMemoryCache<Integer> cache = new SimpleInMemoryCache<Integer>("concurrentAccess");
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<NUM_THREADS; i++){
+			final int threadNum = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(int j=0; j<NUM_OPS; j++){
+						String key = String.valueOf(j % 100);
+						if(cache.get(key) == null){
+							cache.put(key, threadNum);
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		startLatch.countDown();
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Assert.assertEquals(NUM_THREADS * NUM_OPS, cache.getNumGetRequests());
+		Assert.assertEquals(cache.getNumGetRequests(), cache.getNumCacheHits() + cache.getNumCacheMisses());
+		Assert.assertEquals(100, cache.size());
+	}
+	
+	@Test
+	public void boundedBySize(){
+		SimpleInMemoryCache<Integer> cache = new SimpleInMemoryCache<Integer>("boundedBySize", 100);
+		for(int i=0; i<1000; i++){
+			cache.put(String.valueOf(i), i);
+		}
+		Assert.assertEquals(100, cache.size());
+		Assert.assertEquals(100, cache.getWeightedSize());
+		Assert.assertEquals(900, cache.getNumEvictions());
+	}
+	
+	@Test
+	public void scanResistance(){
+		SimpleInMemoryCache<Integer> cache = new SimpleInMemoryCache<Integer>("scanResistance", 100);
+		for(int i=0; i<50; i++){
+			cache.put("hot" + i, i);
+		}
+		for(int round=0; round<5; round++){
+			for(int i=0; i<50; i++){
+				cache.get("hot" + i);
+			}
+		}
+		for(int i=0; i<10000; i++){
+			cache.put("scan" + i, i);
+		}
+		int hotHits = 0;
+		for(int i=0; i<50; i++){
+			if(cache.get("hot" + i) != null){
+				hotHits++;
+			}
+		}
+		Assert.assertTrue("Only " + hotHits + " hot entries survived the scan", hotHits >= 45);
+		Assert.assertTrue(cache.size() <= 100);
+	}
+	
+	@Test
+	public void boundedByWeight(){
+		SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("boundedByWeight");
+		cache.setMaximumWeight(100, new Weigher<String>() {
+			@Override
+			public int weigh(String key, String value) {
+				return value.length();
+			}
+		});
+		for(int i=0; i<20; i++){
+			cache.put(String.valueOf(i), "0123456789");
+		}
+		Assert.assertTrue(cache.getWeightedSize() <= 100);
+		Assert.assertEquals(10, cache.size());
+		cache.put("big", new String(new char[200]));
+		Assert.assertNull(cache.get("big"));
+		Assert.assertTrue(cache.getWeightedSize() <= 100);
+	}
+	
+	@Test
+	public void singleFlightLoad() throws InterruptedException{
+		final SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("singleFlightLoad");
+		final AtomicInteger numLoads = new AtomicInteger();
+		final CacheLoader<String> loader = new CacheLoader<String>() {
+			@Override
+			public String load(String key) throws Exception {
+				numLoads.incrementAndGet();
+				Thread.sleep(200);
+				return "value-" + key;
+			}
+		};
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final AtomicInteger numCorrect = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<NUM_THREADS; i++){
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if("value-hot".equals(cache.get("hot", loader))){
+						numCorrect.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		startLatch.countDown();
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Assert.assertEquals(1, numLoads.get());
+		Assert.assertEquals(NUM_THREADS, numCorrect.get());
+		Assert.assertEquals(1, cache.getNumLoadSuccesses());
+		Assert.assertTrue(cache.getTotalLoadTime() > 0);
+	}
+	
+	@Test
+	public void bulkLoad(){
+		SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("bulkLoad");
+		cache.put("a", "cached");
+		final List<String> requestedKeys = new ArrayList<String>();
+		Map<String,String> values = cache.getAll(Arrays.asList("a", "b", "c"), new BulkCacheLoader<String>() {
+			@Override
+			public Map<String, String> loadAll(Collection<String> keys) throws Exception {
+				requestedKeys.addAll(keys);
+				Map<String,String> loaded = new HashMap<String, String>();
+				loaded.put("b", "loaded");
+				return loaded;
+			}
+		});
+		Assert.assertEquals(Arrays.asList("b", "c"), requestedKeys);
+		Assert.assertEquals(2, values.size());
+		Assert.assertEquals("cached", values.get("a"));
+		Assert.assertEquals("loaded", values.get("b"));
+		Assert.assertEquals("loaded", cache.get("b"));
+		Assert.assertNull(cache.get("c"));
+	}
+	
+	@Test
+	public void refreshAfterWrite() throws InterruptedException{
+		SimpleInMemoryCache<Integer> cache = new SimpleInMemoryCache<Integer>("refreshAfterWrite");
+		cache.setRefreshAfterWrite(50);
+		final AtomicInteger version = new AtomicInteger();
+		CacheLoader<Integer> loader = new CacheLoader<Integer>() {
+			@Override
+			public Integer load(String key) throws Exception {
+				return version.incrementAndGet();
+			}
+		};
+		Assert.assertEquals(Integer.valueOf(1), cache.get("k", loader));
+		Thread.sleep(100);
+		// the stale value is served while the refresh runs in the background
+		Assert.assertEquals(Integer.valueOf(1), cache.get("k", loader));
+		for(int i=0; (i<50) && (version.get() < 2); i++){
+			Thread.sleep(20);
+		}
+		Thread.sleep(20);
+		Assert.assertEquals(Integer.valueOf(2), cache.get("k"));
+	}
+	
+	@Test
+	public void staleGracePeriod() throws InterruptedException{
+		SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("staleGracePeriod");
+		cache.setDefaultLifespan(20);
+		cache.setStaleGracePeriod(60000);
+		final AtomicInteger numLoads = new AtomicInteger();
+		CacheLoader<String> loader = new CacheLoader<String>() {
+			@Override
+			public String load(String key) throws Exception {
+				if(numLoads.incrementAndGet() > 1){
+					throw new IllegalStateException("backend down");
+				}
+				return "first";
+			}
+		};
+		Assert.assertEquals("first", cache.get("k", loader));
+		Thread.sleep(50);
+		Assert.assertNull(cache.get("k"));
+		Assert.assertEquals("first", cache.get("k", loader));
+		Assert.assertEquals(1, cache.getNumLoadFailures());
+	}
+	
+	@Test
+	public void offHeapTier(){
+		SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("offHeapTier", 10);
+		cache.setOffHeapTier(1 << 20, new JsonCacheCodec<String>(String.class));
+		for(int i=0; i<100; i++){
+			cache.put(String.valueOf(i), "value-" + i);
+		}
+		Assert.assertEquals(10, cache.size());
+		Assert.assertTrue(cache.getOffHeapBytes() > 0);
+		for(int i=0; i<100; i++){
+			Assert.assertEquals("value-" + i, cache.get(String.valueOf(i)));
+		}
+		Assert.assertTrue(cache.getNumOffHeapHits() >= 90);
+		Assert.assertEquals(100, cache.getNumCacheHits());
+		Assert.assertTrue(cache.getSerializationTime() > 0);
+	}
+	
+	@Test
+	public void invalidateDuringDemotion() throws InterruptedException{
+		final CountDownLatch encoding = new CountDownLatch(1);
+		final CountDownLatch invalidated = new CountDownLatch(1);
+		final String[] demotedKey = new String[1];
+		final JsonCacheCodec<String> json = new JsonCacheCodec<String>(String.class);
+		final SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("invalidateDuringDemotion", 2);
+		cache.setOffHeapTier(1 << 20, new CacheCodec<String>() {
+			@Override
+			public byte[] encode(String value) {
+				if(encoding.getCount() > 0){
+					// hold the first demotion until the key has been invalidated
+					demotedKey[0] = value;
+					encoding.countDown();
+					try {
+						invalidated.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return json.encode(value);
+			}
+			@Override
+			public String decode(byte[] bytes) {
+				return json.decode(bytes);
+			}
+		});
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0; i<10; i++){
+					cache.put(String.valueOf(i), String.valueOf(i));
+				}
+			}
+		});
+		writer.start();
+		encoding.await();
+		cache.invalidate(demotedKey[0]);
+		invalidated.countDown();
+		writer.join();
+		Assert.assertNull(cache.get(demotedKey[0]));
+	}
+	
+	@Test
+	public void snapshotRestore() throws IOException{
+		File snapshotFile = File.createTempFile("cache", ".snapshot");
+		snapshotFile.delete();
+		try {
+			SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("snapshotRestore");
+			cache.setSnapshotFile(snapshotFile, new JsonCacheCodec<String>(String.class));
+			cache.start();
+			for(int i=0; i<10000; i++){
+				cache.put(String.valueOf(i), "value-" + i);
+			}
+			Date expiry = new Date(System.currentTimeMillis() + 3600000L);
+			cache.put("fixed", "fixed", expiry);
+			cache.put("expiring", "expiring", 1L);
+			cache.stop();
+			Assert.assertTrue(snapshotFile.exists());
+			
+			SimpleInMemoryCache<String> restoredCache = new SimpleInMemoryCache<String>("snapshotRestore");
+			restoredCache.setSnapshotFile(snapshotFile, new JsonCacheCodec<String>(String.class));
+			restoredCache.start();
+			try {
+				Assert.assertEquals(10001, restoredCache.size());
+				Assert.assertEquals("value-1234", restoredCache.get("1234"));
+				Assert.assertNull(restoredCache.get("expiring"));
+				Assert.assertFalse(snapshotFile.exists());
+			}
+			finally {
+				restoredCache.stop();
+			}
+		}
+		finally {
+			snapshotFile.delete();
+		}
+	}
+	@Test
+	public void snapshotRestoreAcrossMappedChunks() throws IOException{
+		File snapshotFile = File.createTempFile("cache", ".snapshot");
+		snapshotFile.delete();
+		try {
+			char[] filler = new char[300000];
+			Arrays.fill(filler, 'x');
+			SimpleInMemoryCache<String> cache = new SimpleInMemoryCache<String>("snapshotRestoreAcrossMappedChunks");
+			cache.setSnapshotFile(snapshotFile, new JsonCacheCodec<String>(String.class));
+			cache.start();
+			// about 40MB, so records straddle the 16MB chunks the snapshot is mapped in
+			for(int i=0; i<130; i++){
+				cache.put(String.valueOf(i), i + new String(filler, 0, filler.length - i));
+			}
+			cache.stop();
+			Assert.assertTrue(snapshotFile.length() > (1L << 25));
+			
+			SimpleInMemoryCache<String> restoredCache = new SimpleInMemoryCache<String>("snapshotRestoreAcrossMappedChunks");
+			restoredCache.setSnapshotFile(snapshotFile, new JsonCacheCodec<String>(String.class));
+			restoredCache.start();
+			try {
+				Assert.assertEquals(130, restoredCache.size());
+				for(int i=0; i<130; i++){
+					Assert.assertEquals(i + new String(filler, 0, filler.length - i), restoredCache.get(String.valueOf(i)));
+				}
+			}
+			finally {
+				restoredCache.stop();
+			}
+		}
+		finally {
+			snapshotFile.delete();
+		}
+	}
+	
+	@Test
+	public void bulkOperations(){
+		SimpleInMemoryCache<Integer> cache = new SimpleInMemoryCache<Integer>("bulkOperations", 100);
+		Map<String,Integer> entries = new HashMap<String, Integer>();
+		for(int i=0; i<150; i++){
+			entries.put(String.valueOf(i), i);
+		}
+		cache.putAll(entries);
+		Assert.assertEquals(100, cache.size());
+		
+		cache.invalidateAll();
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(0, cache.getWeightedSize());
+		
+		cache.putAll(entries, 60000);
+		cache.invalidateAll();
+		for(int i=0; i<10; i++){
+			cache.put(String.valueOf(i), i);
+		}
+		BulkGetResult<Integer> result = cache.getAll(Arrays.asList("1", "2", "x", "3", "y"));
+		Assert.assertEquals(Arrays.asList("1", "2", "3"), new ArrayList<String>(result.getHits().keySet()));
+		Assert.assertEquals(Arrays.asList("x", "y"), result.getMissingKeys());
+		Assert.assertFalse(result.isComplete());
+		
+		Assert.assertTrue(cache.invalidate("1"));
+		Assert.assertFalse(cache.invalidate("1"));
+		Assert.assertEquals(2, cache.invalidateAll(Arrays.asList("2", "3", "x")));
+		Assert.assertEquals(3, cache.invalidateAll(key -> Integer.parseInt(key) >= 7));
+		Assert.assertEquals(4, cache.size());
+		Assert.assertEquals(4, cache.getWeightedSize());
+	}
+	@Test
+	public void longKeyedCache() throws InterruptedException{
+		LongKeyedCache<String> cache = new LongKeyedCache<String>("longKeyedCache");
+		cache.start();
+		for(long i=0; i<10000; i++){
+			cache.put(i, String.valueOf(i));
+		}
+		cache.put(-1L, "short", 100);
+		Assert.assertEquals(10001, cache.size());
+		for(long i=0; i<10000; i+=2){
+			Assert.assertTrue(cache.invalidate(i));
+		}
+		Assert.assertFalse(cache.invalidate(0L));
+		for(long i=0; i<10000; i++){
+			Assert.assertEquals((i % 2 == 0) ? null : String.valueOf(i), cache.get(i));
+		}
+		Thread.sleep(1500);
+		Assert.assertNull(cache.get(-1L));
+		Assert.assertEquals(5000, cache.size());
+		Assert.assertEquals(1, cache.getNumExpirations());
+		cache.stop();
+	}
+	
+	@Test
+	public void longKeyedCacheSweepsLargeSegmentsOverSeveralRuns() throws InterruptedException{
+		LongKeyedCache<String> cache = new LongKeyedCache<String>("longKeyedCacheSweep");
+		cache.start();
+		for(long i=0; i<200000; i++){
+			cache.put(i, "expiring", 1);
+		}
+		cache.put(-1L, "live");
+		Thread.sleep(10);
+		cache.run();
+		Assert.assertTrue(cache.size() > 1);
+		for(int i=0; i<16; i++){
+			cache.run();
+		}
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals("live", cache.get(-1L));
+		Assert.assertEquals(200000, cache.getNumExpirations());
+		cache.stop();
+	}
+	
+	@Test
+	public void longKeyedCacheHitDoesNotAllocate(){
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+		ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		
+		LongKeyedCache<Integer> cache = new LongKeyedCache<Integer>("longKeyedCacheHitDoesNotAllocate");
+		for(int i=0; i<1000; i++){
+			cache.put(i, i);
+		}
+		long sum = 0;
+		for(int i=0; i<100000; i++){
+			sum += cache.get(i % 1000).intValue();
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for(int i=0; i<100000; i++){
+			sum += cache.get(i % 1000).intValue();
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertTrue(sum > 0);
+		// allow for the measurement itself, but far less than one byte per lookup
+		Assert.assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+	}
+	@Test
+	public void invalidationBus() throws IOException{
+		InMemoryInvalidationTransport.Group group = new InMemoryInvalidationTransport.Group();
+		SimpleInMemoryCache<String> cacheA = new SimpleInMemoryCache<String>("employees");
+		SimpleInMemoryCache<String> cacheB = new SimpleInMemoryCache<String>("employees");
+		InvalidationBus busA = new InvalidationBus("a", new InMemoryInvalidationTransport(group));
+		InvalidationBus busB = new InvalidationBus("b", new InMemoryInvalidationTransport(group));
+		busA.setBatchInterval(60000);
+		busA.subscribe(cacheA);
+		busB.subscribe(cacheB);
+		busA.start();
+		busB.start();
+		for(int i=0; i<10; i++){
+			cacheA.put(String.valueOf(i), "a" + i);
+			cacheB.put(String.valueOf(i), "b" + i);
+		}
+		
+		for(int i=0; i<100; i++){
+			busA.invalidate("employees", "1");
+			busA.invalidate("employees", "2");
+		}
+		Assert.assertNull(cacheA.get("1"));
+		Assert.assertEquals("b1", cacheB.get("1"));
+		busA.flush();
+		Assert.assertEquals(1, busA.getNumMessagesPublished());
+		Assert.assertEquals(1, busB.getNumMessagesReceived());
+		Assert.assertEquals(0, busA.getNumMessagesReceived());
+		Assert.assertNull(cacheB.get("1"));
+		Assert.assertNull(cacheB.get("2"));
+		Assert.assertEquals(8, cacheB.size());
+		
+		busA.invalidate("employees", "3");
+		busA.invalidateAll("employees");
+		busA.stop();
+		Assert.assertEquals(2, busA.getNumMessagesPublished());
+		Assert.assertEquals(0, cacheB.size());
+		busB.stop();
+	}
+}
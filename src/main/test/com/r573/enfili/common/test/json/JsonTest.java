@@ -1,14 +1,24 @@
 package com.r573.enfili.common.test.json;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.r573.enfili.common.doc.json.JsonArrayIterator;
 import com.r573.enfili.common.doc.json.JsonHelper;
+import com.r573.enfili.common.doc.json.JsonProcessingException;
 
 public class JsonTest {
 	@SuppressWarnings("unused")
@@ -37,8 +47,91 @@ public class JsonTest {
 		Assert.assertEquals(TEST_OBJ, employee);
 	}
 	@Test
+	public void streams() throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonHelper.toJson(TEST_OBJ, out);
+		Assert.assertEquals(TEST_JSON, out.toString("UTF-8"));
+		StringWriter writer = new StringWriter();
+		JsonHelper.toJson(TEST_OBJ, writer);
+		Assert.assertEquals(TEST_JSON, writer.toString());
+		
+		byte[] json = JsonHelper.toJsonBytes(TEST_OBJ);
+		Assert.assertEquals(TEST_OBJ, JsonHelper.fromJson(json, Employee.class));
+		Assert.assertEquals(TEST_OBJ, JsonHelper.fromJson(new ByteArrayInputStream(json), Employee.class));
+		
+		byte[] packet = new byte[json.length + 10];
+		System.arraycopy(json, 0, packet, 3, json.length);
+		Assert.assertEquals(TEST_OBJ, JsonHelper.fromJson(packet, 3, json.length, Employee.class));
+	}
+	@Test
 	public void toMap(){
 		Map<String,Object> map = JsonHelper.convertToMap(TEST_OBJ);
 		Assert.assertEquals(TEST_MAP, map);
 	}
+	@Test
+	public void configure(){
+		String jsonWithUnknownField = TEST_JSON.replace("}", ",\"department\":\"IT\"}");
+		try {
+			JsonHelper.fromJson(jsonWithUnknownField, Employee.class);
+			Assert.fail("unknown field accepted");
+		}
+		catch (JsonProcessingException e) {
+			// expected with the default configuration
+		}
+		JsonHelper.configure(new JsonHelper.Configurer() {
+			@Override
+			public void configure(ObjectMapper mapper) {
+				mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+			}
+		});
+		try {
+			Assert.assertEquals(TEST_OBJ, JsonHelper.fromJson(jsonWithUnknownField, Employee.class));
+		}
+		finally {
+			JsonHelper.configure(new JsonHelper.Configurer() {
+				@Override
+				public void configure(ObjectMapper mapper) {
+				}
+			});
+		}
+	}
+	@Test
+	public void iterateArray() throws IOException{
+		StringBuilder json = new StringBuilder("{\"statusCode\":\"OK\",\"responseData\":{\"count\":{\"n\":[1,2]},\"array\":[");
+		for(int i=0; i<1000; i++){
+			json.append((i == 0) ? "" : ",").append(TEST_JSON);
+		}
+		json.append("]},\"trailer\":true}");
+		
+		JsonArrayIterator<Employee> iterator = JsonHelper.iterateArray(new ByteArrayInputStream(json.toString().getBytes("UTF-8")), Employee.class, "responseData.array");
+		int count = 0;
+		while(iterator.hasNext()){
+			Assert.assertEquals(TEST_OBJ, iterator.next());
+			count++;
+		}
+		Assert.assertEquals(1000, count);
+		
+		Assert.assertEquals(1000, JsonHelper.iterateArray(new ByteArrayInputStream(json.toString().getBytes("UTF-8")), Employee.class, "responseData.array").stream().count());
+		Assert.assertFalse(JsonHelper.iterateArray(new ByteArrayInputStream(json.toString().getBytes("UTF-8")), Employee.class, "responseData.missing").hasNext());
+		
+		List<Employee> rootArray = new ArrayList<Employee>();
+		JsonHelper.iterateArray(new ByteArrayInputStream(("[" + TEST_JSON + "]").getBytes("UTF-8")), Employee.class, null).forEachRemaining(rootArray::add);
+		Assert.assertEquals(1, rootArray.size());
+	}
+	@Test
+	public void smile(){
+		if(!JsonHelper.isSmileAvailable()){
+			try {
+				JsonHelper.toSmile(TEST_OBJ);
+				Assert.fail("Smile encoding without jackson-smile");
+			}
+			catch (IllegalStateException e) {
+				// expected without jackson-smile on the classpath
+			}
+			return;
+		}
+		byte[] smile = JsonHelper.toSmile(TEST_OBJ);
+		Assert.assertTrue(smile.length < JsonHelper.toJsonBytes(TEST_OBJ).length);
+		Assert.assertEquals(TEST_OBJ, JsonHelper.fromSmile(smile, Employee.class));
+	}
 }
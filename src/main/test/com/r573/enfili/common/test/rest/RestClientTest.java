@@ -0,0 +1,248 @@
+package com.r573.enfili.common.test.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.NewCookie;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.r573.enfili.common.resource.rest.CookieStore;
+import com.r573.enfili.common.resource.rest.HttpResponseCache;
+import com.r573.enfili.common.resource.rest.ResponseWrapper;
+import com.r573.enfili.common.resource.rest.RestClient;
+import com.r573.enfili.common.resource.rest.RestConnectionPool;
+import com.r573.enfili.common.test.json.Employee;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RestClientTest {
+	private static String EMPLOYEE_JSON = "{\"firstName\":\"John\",\"lastName\":\"Smith\",\"title\":\"Project Manager\",\"phoneNumber\":\"123412312\",\"email\":\"jsmith@acme.com\"}";
+	
+	private HttpServer server;
+	private String baseUrl;
+	private AtomicInteger activeRequests;
+	private AtomicInteger maxActiveRequests;
+	private AtomicInteger referenceRequests = new AtomicInteger();
+	
+	@Before
+	public void startServer() throws IOException {
+		activeRequests = new AtomicInteger();
+		maxActiveRequests = new AtomicInteger();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/employee", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int active = activeRequests.incrementAndGet();
+				maxActiveRequests.accumulateAndGet(active, Math::max);
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				activeRequests.decrementAndGet();
+				byte[] body = EMPLOYEE_JSON.getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.createContext("/reference", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				referenceRequests.incrementAndGet();
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				if("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = EMPLOYEE_JSON.getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+	}
+	
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+	
+	@Test
+	public void connectionPool() throws InterruptedException {
+		final RestConnectionPool pool = new RestConnectionPool(2, true);
+		final AtomicInteger numResponses = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<6; i++){
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					RestClient client = new RestClient(baseUrl, pool);
+					ResponseWrapper<Employee> response = client.get("employee", Employee.class);
+					if("Smith".equals(response.getResponse().getLastName())){
+						numResponses.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Assert.assertEquals(6, numResponses.get());
+		Assert.assertTrue(maxActiveRequests.get() <= 2);
+		Assert.assertEquals(6, pool.getNumRequests());
+		Assert.assertEquals(0, pool.getTotalLeasedConnections());
+		Assert.assertEquals(0, pool.getNumLeaseTimeouts());
+	}
+	
+	@Test
+	public void compressionKeepsClientsApart() throws InterruptedException {
+		final RestConnectionPool pool = new RestConnectionPool(4, true);
+		final int numRequests = 200;
+		final AtomicInteger numResponses = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<8; i++){
+			final boolean pooled = (i % 2 == 0);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					RestClient client = pooled ? new RestClient(baseUrl, pool) : new RestClient(baseUrl);
+					client.setCompression(true, false);
+					for(int j=0; j<numRequests; j++){
+						ResponseWrapper<Employee> response = client.get("reference", Employee.class);
+						if("Smith".equals(response.getResponse().getLastName())){
+							numResponses.incrementAndGet();
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Assert.assertEquals(8 * numRequests, numResponses.get());
+		// only the pooled clients' requests went through the pool's lease filter
+		Assert.assertEquals(4 * numRequests, pool.getNumRequests());
+		Assert.assertEquals(0, pool.getTotalLeasedConnections());
+	}
+	
+	@Test
+	public void leakedLeaseIsGivenBack() throws InterruptedException {
+		RestConnectionPool pool = new RestConnectionPool(1, true);
+		leakResponse(pool);
+		Assert.assertEquals(1, pool.getTotalLeasedConnections());
+		long deadline = System.currentTimeMillis() + 10000;
+		while((pool.getNumLeakedLeases() == 0) && (System.currentTimeMillis() < deadline)){
+			System.gc();
+			Thread.sleep(50);
+		}
+		Assert.assertEquals(1, pool.getNumLeakedLeases());
+		Assert.assertEquals(0, pool.getTotalLeasedConnections());
+		ClientResponse response = pool.getClient().resource(baseUrl + "/employee").get(ClientResponse.class);
+		Assert.assertEquals(EMPLOYEE_JSON, response.getEntity(String.class));
+		Assert.assertEquals(0, pool.getTotalLeasedConnections());
+		Assert.assertEquals(1, pool.getNumLeakedLeases());
+	}
+	
+	private void leakResponse(RestConnectionPool pool) {
+		ClientResponse response = pool.getClient().resource(baseUrl + "/employee").get(ClientResponse.class);
+		Assert.assertEquals(200, response.getStatus());
+	}
+	
+	@Test
+	public void cookieStore() throws InterruptedException {
+		CookieStore cookies = new CookieStore();
+		Assert.assertNull(cookies.getHeader());
+		cookies.update(Arrays.asList(new NewCookie("session", "abc"), new NewCookie("short", "x", null, null, null, 1, false)));
+		Assert.assertEquals("session=abc; short=x", cookies.getHeader());
+		cookies.update(Collections.singletonList(new NewCookie("session", "def")));
+		Assert.assertEquals("session=def; short=x", cookies.getHeader());
+		Thread.sleep(1100);
+		Assert.assertEquals("session=def", cookies.getHeader());
+		Assert.assertNull(cookies.get("short"));
+		cookies.update(Collections.singletonList(new NewCookie("session", "", null, null, null, 0, false)));
+		Assert.assertNull(cookies.getHeader());
+	}
+	
+	@Test
+	public void cookieStoreStress() throws InterruptedException {
+		final CookieStore cookies = new CookieStore();
+		final AtomicInteger numFailures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<32; t++){
+			final int threadNum = t;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0; i<10000; i++){
+						if((threadNum % 4) == 0){
+							cookies.update(Collections.singletonList(new NewCookie("c" + (i % 8), String.valueOf(i))));
+						}
+						else{
+							String header = cookies.getHeader();
+							if(header != null){
+								for(String cookie : header.split("; ")){
+									if(!cookie.matches("c[0-7]=[0-9]+")){
+										numFailures.incrementAndGet();
+									}
+								}
+							}
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Assert.assertEquals(0, numFailures.get());
+		Assert.assertEquals(8, cookies.size());
+	}
+	
+	@Test
+	public void conditionalGet() {
+		RestClient client = new RestClient(baseUrl);
+		HttpResponseCache cache = new HttpResponseCache("restResponses", 100);
+		client.setResponseCache(cache);
+		try {
+			ResponseWrapper<Employee> first = client.get("reference", Employee.class);
+			Assert.assertEquals("Smith", first.getResponse().getLastName());
+			// no max-age, so every get is revalidated
+			Assert.assertSame(first, client.get("reference", Employee.class));
+			Assert.assertSame(first, client.get("reference", Employee.class));
+			Assert.assertEquals(3, referenceRequests.get());
+			Assert.assertEquals(2, cache.getNumNotModified());
+		}
+		finally {
+			cache.stop();
+		}
+	}
+}
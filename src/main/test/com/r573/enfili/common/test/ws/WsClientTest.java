@@ -0,0 +1,484 @@
+package com.r573.enfili.common.test.ws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonParser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.r573.enfili.common.doc.json.JsonHelper;
+import com.r573.enfili.common.exception.WsRuntimeException;
+import com.r573.enfili.common.resource.rest.HttpResponseCache;
+import com.r573.enfili.common.resource.rest.RestClient;
+import com.r573.enfili.common.test.json.Employee;
+import com.r573.enfili.ws.client.CircuitBreaker;
+import com.r573.enfili.ws.client.WsResilience;
+import com.r573.enfili.ws.client.WsResponseDecoder;
+import com.r573.enfili.ws.client.WsRestClient;
+import com.r573.enfili.ws.client.WsRestException;
+import com.r573.enfili.ws.data.WsResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class WsClientTest {
+	private static String EMPLOYEE_JSON = "{\"firstName\":\"John\",\"lastName\":\"Smith\",\"title\":\"Project Manager\",\"phoneNumber\":\"123412312\",\"email\":\"jsmith@acme.com\"}";
+	
+	private HttpServer server;
+	private AtomicInteger flakyRequests = new AtomicInteger();
+	private AtomicBoolean slowHedgedRequest = new AtomicBoolean();
+	private AtomicInteger referenceRequests = new AtomicInteger();
+	private AtomicBoolean gzipRequestReceived = new AtomicBoolean();
+	private String baseUrl;
+	
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/employee", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if(exchange.getRequestURI().getQuery() != null){
+					// slow request
+					try {
+						Thread.sleep(2000);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				byte[] body = ("{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}").getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.createContext("/flaky", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// the first two requests get a broken response
+				String body = (flakyRequests.incrementAndGet() <= 2) ? "Service Unavailable" : "{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}";
+				respond(exchange, body);
+			}
+		});
+		server.createContext("/hedged", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if(slowHedgedRequest.compareAndSet(true, false)){
+					try {
+						Thread.sleep(2000);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				respond(exchange, "{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}");
+			}
+		});
+		server.createContext("/hedgedCached", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				if(slowHedgedRequest.compareAndSet(true, false)){
+					try {
+						Thread.sleep(1000);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					// the losing request answers differently, so that caching it would show
+					respond(exchange, "{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON.replace("Smith", "Slow") + "}");
+					return;
+				}
+				respond(exchange, "{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}");
+			}
+		});
+		server.createContext("/reference", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				referenceRequests.incrementAndGet();
+				// the query is the max-age
+				String maxAge = exchange.getRequestURI().getQuery().substring("maxAge=".length());
+				exchange.getResponseHeaders().add("Cache-Control", maxAge.equals("private") ? "private, max-age=60" : "max-age=" + maxAge);
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				if("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				respond(exchange, "{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}");
+			}
+		});
+		server.createContext("/gzip", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// echoes the posted employee, compressed both ways
+				InputStream in = exchange.getRequestBody();
+				if("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))){
+					gzipRequestReceived.set(true);
+					in = new GZIPInputStream(in);
+				}
+				byte[] body = ("{\"statusCode\":\"OK\",\"responseData\":" + new String(IOUtils.toByteArray(in), "UTF-8") + "}").getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if((acceptEncoding != null) && acceptEncoding.contains("gzip")){
+					exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+					exchange.sendResponseHeaders(200, 0);
+					GZIPOutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+					out.write(body);
+					out.close();
+				}
+				else{
+					respond(exchange, new String(body, "UTF-8"));
+				}
+			}
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+	}
+	
+	private static void respond(HttpExchange exchange, String json) throws IOException {
+		byte[] body = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+	
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+	
+	private static JsonParser parser(String json) throws IOException {
+		return JsonHelper.getObjectMapper().getJsonFactory().createJsonParser(json);
+	}
+	
+	@Test
+	public void decodeResponse() throws IOException, WsRestException {
+		WsResponse<Employee> response = WsResponseDecoder.decode(parser("{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}"), Employee.class);
+		Assert.assertEquals(WsResponse.RESP_CODE_OK, response.getStatusCode());
+		Assert.assertEquals("Smith", response.getResponseData().getLastName());
+		
+		response = WsResponseDecoder.decode(parser("{\"responseData\":" + EMPLOYEE_JSON + ",\"extra\":[1],\"statusCode\":\"OK\"}"), Employee.class);
+		Assert.assertEquals("Smith", response.getResponseData().getLastName());
+		
+		WsResponse<Object> untyped = WsResponseDecoder.decode(parser("{\"statusCode\":\"OK\",\"responseData\":" + EMPLOYEE_JSON + "}"), null);
+		Assert.assertEquals("Smith", ((Map<?,?>) untyped.getResponseData()).get("lastName"));
+	}
+	
+	@Test
+	public void decodeError() throws IOException {
+		String[] errors = {
+			"{\"statusCode\":\"ERR\",\"responseData\":{\"errorCode\":\"E-1\",\"errorDesc\":\"Bad request\"}}",
+			"{\"responseData\":{\"errorCode\":\"E-1\",\"errorDesc\":\"Bad request\"},\"statusCode\":\"ERR\"}"
+		};
+		for(String error : errors){
+			try {
+				WsResponseDecoder.decode(parser(error), Employee.class);
+				Assert.fail("error response decoded as data");
+			}
+			catch (WsRestException e) {
+				Assert.assertEquals("E-1", e.getErrCode());
+			}
+		}
+	}
+	
+	@Test
+	public void asyncCalls() throws InterruptedException, ExecutionException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		List<CompletableFuture<WsResponse<Employee>>> calls = new ArrayList<CompletableFuture<WsResponse<Employee>>>();
+		for(int i=0; i<5; i++){
+			calls.add(client.getAsync("/employee", Employee.class));
+		}
+		List<WsResponse<Employee>> responses = WsRestClient.joinAll(calls).get();
+		Assert.assertEquals(5, responses.size());
+		for(WsResponse<Employee> response : responses){
+			Assert.assertEquals("Smith", response.getResponseData().getLastName());
+		}
+		
+		Map<String,String> slow = new HashMap<String, String>();
+		slow.put("slow", "true");
+		try {
+			client.getAsync("/employee", Employee.class, slow, 200).get();
+			Assert.fail("slow call did not time out");
+		}
+		catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+	
+	@Test
+	public void retries() throws WsRestException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		WsResilience resilience = new WsResilience();
+		resilience.setBackoffBaseMillis(10);
+		client.setResilience(resilience);
+		
+		WsResponse<Employee> response = client.get("/flaky", Employee.class);
+		Assert.assertEquals("Smith", response.getResponseData().getLastName());
+		Assert.assertEquals(3, flakyRequests.get());
+		Assert.assertEquals(2, resilience.getNumRetries());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, resilience.getCircuitBreaker(baseUrl).getState());
+		
+		// POST is not idempotent, so it is not retried
+		flakyRequests.set(0);
+		try {
+			client.post("/flaky", new Employee(), Employee.class);
+			Assert.fail("broken response accepted");
+		}
+		catch (WsRuntimeException e) {
+			Assert.assertEquals(1, flakyRequests.get());
+		}
+	}
+	
+	@Test
+	public void circuitBreaker() throws WsRestException, InterruptedException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		WsResilience resilience = new WsResilience();
+		resilience.setMaxRetries(0);
+		resilience.setFailureThreshold(2);
+		resilience.setOpenMillis(200);
+		client.setResilience(resilience);
+		
+		for(int i=0; i<2; i++){
+			try {
+				client.get("/flaky", Employee.class);
+				Assert.fail("broken response accepted");
+			}
+			catch (WsRuntimeException e) {
+				Assert.assertNull(e.getErrCode());
+			}
+		}
+		Assert.assertEquals(CircuitBreaker.State.OPEN, resilience.getBreakerStates().get(baseUrl));
+		try {
+			client.get("/flaky", Employee.class);
+			Assert.fail("call made through an open breaker");
+		}
+		catch (WsRuntimeException e) {
+			Assert.assertEquals(WsResilience.ERR_CIRCUIT_OPEN, e.getErrCode());
+		}
+		Assert.assertEquals(2, flakyRequests.get());
+		Assert.assertEquals(1, resilience.getNumShortCircuited());
+		
+		Thread.sleep(250);
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, resilience.getCircuitBreaker(baseUrl).getState());
+		Assert.assertEquals("Smith", client.get("/flaky", Employee.class).getResponseData().getLastName());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, resilience.getCircuitBreaker(baseUrl).getState());
+	}
+	
+	@Test
+	public void circuitBreakerCountsCallsNotRetries() throws WsRestException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		WsResilience resilience = new WsResilience();
+		resilience.setMaxRetries(1);
+		resilience.setBackoffBaseMillis(0);
+		resilience.setFailureThreshold(2);
+		client.setResilience(resilience);
+		
+		try {
+			client.get("/flaky", Employee.class);
+			Assert.fail("broken response accepted");
+		}
+		catch (WsRuntimeException e) {
+			Assert.assertNull(e.getErrCode());
+		}
+		// two broken responses, but a single failed call
+		Assert.assertEquals(2, flakyRequests.get());
+		Assert.assertEquals(1, resilience.getCircuitBreaker(baseUrl).getConsecutiveFailures());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, resilience.getCircuitBreaker(baseUrl).getState());
+	}
+	
+	@Test
+	public void hedging() throws WsRestException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		WsResilience resilience = new WsResilience();
+		// well above the latency of the stub, so that only the slow request is hedged
+		resilience.setMinHedgeDelayMillis(300);
+		client.setResilience(resilience);
+		
+		for(int i=0; i<32; i++){
+			client.get("/hedged", Employee.class);
+		}
+		Assert.assertEquals(300, resilience.getHedgeDelay(baseUrl));
+		
+		slowHedgedRequest.set(true);
+		long start = System.currentTimeMillis();
+		WsResponse<Employee> response = client.get("/hedged", Employee.class);
+		long elapsed = System.currentTimeMillis() - start;
+		Assert.assertEquals("Smith", response.getResponseData().getLastName());
+		Assert.assertTrue("hedged call took " + elapsed + "ms", elapsed < 1500);
+		Assert.assertEquals(1, resilience.getNumHedges());
+		Assert.assertEquals(1, resilience.getNumHedgesWon());
+		Assert.assertEquals(0, resilience.getNumRetries());
+	}
+	
+	@Test
+	public void hedgingCachesOnlyTheWinner() throws WsRestException, InterruptedException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		HttpResponseCache cache = new HttpResponseCache("hedgedResponses", 100);
+		client.setResponseCache(cache);
+		WsResilience resilience = new WsResilience();
+		resilience.setMinHedgeDelayMillis(300);
+		client.setResilience(resilience);
+		try {
+			// distinct queries, so that every call reaches the server and is timed
+			for(int i=0; i<32; i++){
+				client.get("/hedgedCached", Employee.class, Collections.singletonMap("i", String.valueOf(i)));
+			}
+			
+			slowHedgedRequest.set(true);
+			Map<String,String> query = Collections.singletonMap("i", "hedged");
+			WsResponse<Employee> response = client.get("/hedgedCached", Employee.class, query);
+			Assert.assertEquals("Smith", response.getResponseData().getLastName());
+			Assert.assertEquals(1, resilience.getNumHedgesWon());
+			// let the losing request finish
+			Thread.sleep(1200);
+			Assert.assertSame(response, client.get("/hedgedCached", Employee.class, query));
+		}
+		finally {
+			cache.stop();
+		}
+	}
+	
+	@Test
+	public void hedgingOnBoundedExecutor() throws Exception {
+		WsRestClient client = new WsRestClient(baseUrl);
+		ExecutorService asyncExecutor = Executors.newFixedThreadPool(1);
+		client.setAsyncExecutor(asyncExecutor);
+		WsResilience resilience = new WsResilience();
+		resilience.setMinHedgeDelayMillis(300);
+		client.setResilience(resilience);
+		try {
+			for(int i=0; i<32; i++){
+				client.getAsync("/hedged", Employee.class).get(5, TimeUnit.SECONDS);
+			}
+			
+			// the only async thread waits on the hedged call, whose requests must still run
+			slowHedgedRequest.set(true);
+			List<CompletableFuture<WsResponse<Employee>>> calls = new ArrayList<CompletableFuture<WsResponse<Employee>>>();
+			for(int i=0; i<3; i++){
+				calls.add(client.getAsync("/hedged", Employee.class));
+			}
+			for(WsResponse<Employee> response : WsRestClient.joinAll(calls).get(5, TimeUnit.SECONDS)){
+				Assert.assertEquals("Smith", response.getResponseData().getLastName());
+			}
+			Assert.assertEquals(1, resilience.getNumHedgesWon());
+		}
+		finally {
+			asyncExecutor.shutdown();
+		}
+	}
+	
+	@Test
+	public void responseCache() throws WsRestException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		HttpResponseCache cache = new HttpResponseCache("wsResponses", 100);
+		client.setResponseCache(cache);
+		try {
+			Map<String,String> fresh = new HashMap<String, String>();
+			fresh.put("maxAge", "60");
+			WsResponse<Employee> first = client.get("/reference", Employee.class, fresh);
+			Assert.assertSame(first, client.get("/reference", Employee.class, fresh));
+			Assert.assertEquals(1, referenceRequests.get());
+			
+			Map<String,String> revalidated = new HashMap<String, String>();
+			revalidated.put("maxAge", "0");
+			first = client.get("/reference", Employee.class, revalidated);
+			Assert.assertSame(first, client.get("/reference", Employee.class, revalidated));
+			Assert.assertEquals(3, referenceRequests.get());
+			
+			Assert.assertEquals(1, cache.getNumFreshHits());
+			Assert.assertEquals(1, cache.getNumNotModified());
+			Assert.assertEquals(0.5d, cache.getHitRatio(), 0.0001d);
+			
+			// private responses are never stored, as the cache may be shared
+			Map<String,String> privateResponse = new HashMap<String, String>();
+			privateResponse.put("maxAge", "private");
+			client.get("/reference", Employee.class, privateResponse);
+			client.get("/reference", Employee.class, privateResponse);
+			Assert.assertEquals(5, referenceRequests.get());
+			
+			// a RestClient sharing the cache keeps its own entries, of its own type
+			RestClient restClient = new RestClient(baseUrl);
+			restClient.setResponseCache(cache);
+			Assert.assertNotNull(restClient.get("reference", Map.class, fresh).getResponse().get("responseData"));
+			Assert.assertEquals(6, referenceRequests.get());
+			Assert.assertEquals("Smith", client.get("/reference", Map.class, fresh).getResponseData().get("lastName"));
+			Assert.assertEquals(7, referenceRequests.get());
+			Assert.assertNotNull(restClient.get("reference", Map.class, fresh).getResponse());
+			Assert.assertEquals(7, referenceRequests.get());
+		}
+		finally {
+			cache.stop();
+		}
+	}
+	
+	@Test
+	public void collapseGets() throws InterruptedException {
+		final WsRestClient client = new WsRestClient(baseUrl);
+		client.setCollapseGets(true);
+		final Map<String,String> slow = new HashMap<String, String>();
+		slow.put("slow", "true");
+		final List<WsResponse<Employee>> responses = new ArrayList<WsResponse<Employee>>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<5; i++){
+			Thread thread = new Thread(() -> {
+				try {
+					WsResponse<Employee> response = client.get("/employee", Employee.class, slow);
+					synchronized (responses) {
+						responses.add(response);
+					}
+				}
+				catch (WsRestException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Assert.assertEquals(5, responses.size());
+		Assert.assertEquals(4, client.getNumCollapsedGets());
+		for(WsResponse<Employee> response : responses){
+			Assert.assertSame(responses.get(0), response);
+		}
+	}
+	
+	@Test
+	public void compression() throws WsRestException {
+		WsRestClient client = new WsRestClient(baseUrl);
+		client.setCompression(true, true);
+		Employee employee = new Employee();
+		employee.setLastName("Smith");
+		WsResponse<Employee> response = client.post("/gzip", employee, Employee.class);
+		Assert.assertEquals("Smith", response.getResponseData().getLastName());
+		Assert.assertTrue(gzipRequestReceived.get());
+	}
+}
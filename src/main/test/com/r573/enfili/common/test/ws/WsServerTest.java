@@ -0,0 +1,350 @@
+package com.r573.enfili.common.test.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.r573.enfili.common.doc.json.JsonArrayIterator;
+import com.r573.enfili.common.doc.json.JsonHelper;
+import com.r573.enfili.common.test.json.Employee;
+import com.r573.enfili.ws.data.WsError;
+import com.r573.enfili.ws.data.WsResponse;
+import com.r573.enfili.ws.jersey.FileStreamingOutput;
+import com.r573.enfili.ws.jersey.GzipContentEncodingFilter;
+import com.r573.enfili.ws.jersey.JsonStreamingOutput;
+import com.r573.enfili.ws.jersey.StreamStreamingOutput;
+import com.r573.enfili.ws.jersey.WsResponseWriter;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import com.sun.jersey.spi.container.WebApplication;
+
+public class WsServerTest {
+	@Test
+	public void writeResponse() throws IOException {
+		WsResponseWriter writer = new WsResponseWriter();
+		Assert.assertTrue(writer.isWriteable(WsResponse.class, WsResponse.class, null, MediaType.APPLICATION_JSON_TYPE));
+		Assert.assertFalse(writer.isWriteable(String.class, String.class, null, MediaType.APPLICATION_JSON_TYPE));
+		
+		WsResponse<WsError> response = new WsResponse<WsError>(WsResponse.RESP_CODE_ERROR, new WsError("E-1", "Bad request"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.writeTo(response, WsResponse.class, WsResponse.class, null, MediaType.APPLICATION_JSON_TYPE, null, out);
+		Assert.assertEquals(JsonHelper.toJson(response), out.toString("UTF-8"));
+		Assert.assertEquals(-1, writer.getSize(response, WsResponse.class, WsResponse.class, null, MediaType.APPLICATION_JSON_TYPE));
+		
+		out = new ByteArrayOutputStream();
+		writer.writeTo(WsResponseWriter.GENERAL_ERROR_RESPONSE, WsResponse.class, WsResponse.class, null, MediaType.APPLICATION_JSON_TYPE, null, out);
+		Assert.assertEquals(JsonHelper.toJson(WsResponseWriter.GENERAL_ERROR_RESPONSE), out.toString("UTF-8"));
+		Assert.assertEquals(out.size(), writer.getSize(WsResponseWriter.GENERAL_ERROR_RESPONSE, WsResponse.class, WsResponse.class, null, MediaType.APPLICATION_JSON_TYPE));
+	}
+	
+	/**
+	 * Captures what the container would send
+	 */
+	private static class CapturingWriter implements ContainerResponseWriter {
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private long contentLength;
+		private boolean finished;
+		
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) {
+			this.contentLength = contentLength;
+			return body;
+		}
+		
+		@Override
+		public void finish() {
+			finished = true;
+		}
+	}
+	
+	/**
+	 * A web application doing nothing, as the filter does not use it
+	 */
+	private static final WebApplication NO_APPLICATION = (WebApplication) Proxy.newProxyInstance(WsServerTest.class.getClassLoader(),
+			new Class<?>[] { WebApplication.class }, (proxy, method, args) -> method.getReturnType().equals(boolean.class) ? Boolean.FALSE : null);
+	
+	private static ContainerRequest request(String method, InBoundHeaders headers, byte[] entity) {
+		return new ContainerRequest(NO_APPLICATION, method, URI.create("http://localhost/"), URI.create("http://localhost/employee"), headers, new ByteArrayInputStream(entity));
+	}
+	
+	/**
+	 * Runs a response with the body through the filter, writing it in 100 byte chunks as a
+	 * message body writer would
+	 */
+	private static ContainerResponse filterResponse(GzipContentEncodingFilter filter, String acceptEncoding, byte[] body, CapturingWriter writer) throws IOException {
+		InBoundHeaders headers = new InBoundHeaders();
+		if(acceptEncoding != null){
+			headers.putSingle(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+		}
+		ContainerRequest request = request("GET", headers, new byte[0]);
+		ContainerResponse response = new ContainerResponse(NO_APPLICATION, request, writer);
+		response.setEntity(body);
+		response.getHttpHeaders().putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_TYPE);
+		response = filter.filter(request, response);
+		
+		OutputStream out = response.getContainerResponseWriter().writeStatusAndHeaders(-1, response);
+		for(int off=0; off<body.length; off+=100){
+			out.write(body, off, Math.min(100, body.length - off));
+		}
+		out.close();
+		response.getContainerResponseWriter().finish();
+		return response;
+	}
+	
+	@Test
+	public void compressResponse() throws IOException {
+		GzipContentEncodingFilter filter = new GzipContentEncodingFilter(1024);
+		StringBuilder list = new StringBuilder("[");
+		for(int i=0; i<500; i++){
+			list.append(i == 0 ? "" : ",").append("{\"firstName\":\"John\",\"lastName\":\"Smith\",\"id\":").append(i).append('}');
+		}
+		byte[] large = list.append(']').toString().getBytes("UTF-8");
+		
+		CapturingWriter writer = new CapturingWriter();
+		ContainerResponse response = filterResponse(filter, "deflate;q=0.5, gzip", large, writer);
+		Assert.assertEquals("gzip", response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		Assert.assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHttpHeaders().getFirst(HttpHeaders.VARY));
+		Assert.assertTrue(writer.finished);
+		Assert.assertEquals(-1, writer.contentLength);
+		Assert.assertTrue("compressed to " + writer.body.size() + " of " + large.length, writer.body.size() < large.length / 5);
+		Assert.assertArrayEquals(large, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(writer.body.toByteArray()))));
+		
+		// below the threshold, sent as it is with its length
+		byte[] small = "{\"statusCode\":\"OK\"}".getBytes("UTF-8");
+		writer = new CapturingWriter();
+		response = filterResponse(filter, "gzip", small, writer);
+		Assert.assertNull(response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		Assert.assertArrayEquals(small, writer.body.toByteArray());
+		Assert.assertEquals(small.length, writer.contentLength);
+		
+		// not accepted by the client
+		writer = new CapturingWriter();
+		response = filterResponse(filter, "gzip;q=0", large, writer);
+		Assert.assertNull(response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		Assert.assertArrayEquals(large, writer.body.toByteArray());
+		writer = new CapturingWriter();
+		response = filterResponse(filter, null, large, writer);
+		Assert.assertArrayEquals(large, writer.body.toByteArray());
+	}
+	
+	@Test
+	public void decompressRequest() throws IOException {
+		byte[] body = "{\"firstName\":\"John\"}".getBytes("UTF-8");
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		gzip.write(body);
+		gzip.close();
+		
+		InBoundHeaders headers = new InBoundHeaders();
+		headers.putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+		ContainerRequest request = new GzipContentEncodingFilter().filter(request("POST", headers, compressed.toByteArray()));
+		Assert.assertArrayEquals(body, IOUtils.toByteArray(request.getEntityInputStream()));
+		Assert.assertNull(request.getRequestHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+	}
+	
+	private static byte[] body(Response response) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((FileStreamingOutput) response.getEntity()).write(out);
+		return out.toByteArray();
+	}
+	
+	@Test
+	public void fileDownload() throws IOException {
+		byte[] content = new byte[200000];
+		for(int i=0; i<content.length; i++){
+			content[i] = (byte) i;
+		}
+		File file = File.createTempFile("download", ".bin");
+		File copy = File.createTempFile("download", ".copy");
+		try {
+			FileUtils.writeByteArrayToFile(file, content);
+			
+			Response response = FileStreamingOutput.response(file, MediaType.APPLICATION_OCTET_STREAM_TYPE, null, null).build();
+			Assert.assertEquals(200, response.getStatus());
+			Assert.assertEquals("bytes", response.getMetadata().getFirst("Accept-Ranges"));
+			Assert.assertArrayEquals(content, body(response));
+			String etag = (String) response.getMetadata().getFirst("ETag");
+			
+			// through a file channel, as when the container's stream is one
+			FileOutputStream out = new FileOutputStream(copy);
+			((FileStreamingOutput) response.getEntity()).write(out);
+			out.close();
+			Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(copy));
+			
+			response = FileStreamingOutput.response(file, MediaType.APPLICATION_OCTET_STREAM_TYPE, "bytes=100000-", etag).build();
+			Assert.assertEquals(206, response.getStatus());
+			Assert.assertEquals("bytes 100000-199999/200000", response.getMetadata().getFirst("Content-Range"));
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 100000, 200000), body(response));
+			
+			response = FileStreamingOutput.response(file, MediaType.APPLICATION_OCTET_STREAM_TYPE, "bytes=-10", null).build();
+			Assert.assertEquals(206, response.getStatus());
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 199990, 200000), body(response));
+			
+			response = FileStreamingOutput.response(file, MediaType.APPLICATION_OCTET_STREAM_TYPE, "bytes=10-19", null).build();
+			Assert.assertEquals(Long.valueOf(10), response.getMetadata().getFirst("Content-Length"));
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 10, 20), body(response));
+			
+			// the file changed since the client's copy, so the whole file is sent
+			response = FileStreamingOutput.response(file, MediaType.APPLICATION_OCTET_STREAM_TYPE, "bytes=100000-", "\"stale\"").build();
+			Assert.assertEquals(200, response.getStatus());
+			Assert.assertArrayEquals(content, body(response));
+			
+			response = FileStreamingOutput.response(file, MediaType.APPLICATION_OCTET_STREAM_TYPE, "bytes=300000-", null).build();
+			Assert.assertEquals(416, response.getStatus());
+			Assert.assertEquals("bytes */200000", response.getMetadata().getFirst("Content-Range"));
+		}
+		finally {
+			file.delete();
+			copy.delete();
+		}
+	}
+	
+	@Test
+	public void streamCopy() throws IOException {
+		byte[] content = new byte[100001];
+		for(int i=0; i<content.length; i++){
+			content[i] = (byte) (i * 7);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StreamStreamingOutput(new ByteArrayInputStream(content)).write(out);
+		Assert.assertArrayEquals(content, out.toByteArray());
+	}
+	
+	/**
+	 * Records how often it was flushed
+	 */
+	private static class FlushCountingStream extends ByteArrayOutputStream {
+		private int numFlushes;
+		
+		@Override
+		public void flush() {
+			numFlushes++;
+		}
+	}
+	
+	private static List<Employee> employees(int count) {
+		List<Employee> employees = new ArrayList<Employee>();
+		for(int i=0; i<count; i++){
+			Employee employee = new Employee();
+			employee.setLastName("Smith" + i);
+			employees.add(employee);
+		}
+		return employees;
+	}
+	
+	@Test
+	public void streamJsonArray() throws IOException {
+		List<Employee> employees = employees(250);
+		FlushCountingStream out = new FlushCountingStream();
+		JsonStreamingOutput.wsArray(employees.iterator()).write(out);
+		// the envelope, two full batches and the end
+		Assert.assertEquals(4, out.numFlushes);
+		
+		JsonArrayIterator<Employee> array = JsonHelper.iterateArray(new ByteArrayInputStream(out.toByteArray()), Employee.class, "responseData.array");
+		int count = 0;
+		while(array.hasNext()){
+			Assert.assertEquals("Smith" + count, array.next().getLastName());
+			count++;
+		}
+		Assert.assertEquals(250, count);
+		WsResponse<?> response = JsonHelper.fromJson(out.toByteArray(), WsResponse.class);
+		Assert.assertEquals(WsResponse.RESP_CODE_OK, response.getStatusCode());
+		
+		out = new FlushCountingStream();
+		JsonStreamingOutput.wsArray(new ArrayList<Employee>().iterator()).write(out);
+		Assert.assertEquals("{\"statusCode\":\"OK\",\"responseData\":{\"array\":[]}}", out.toString("UTF-8"));
+	}
+	
+	@Test
+	public void streamNdjson() throws IOException {
+		final AtomicBoolean closed = new AtomicBoolean();
+		Stream<Employee> employees = employees(3).stream().onClose(() -> closed.set(true));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStreamingOutput.ndjson(employees).write(out);
+		Assert.assertTrue(closed.get());
+		
+		String[] lines = out.toString("UTF-8").split("\n", -1);
+		Assert.assertEquals(4, lines.length);
+		Assert.assertEquals("", lines[3]);
+		for(int i=0; i<3; i++){
+			Assert.assertEquals("Smith" + i, JsonHelper.fromJson(lines[i], Employee.class).getLastName());
+		}
+	}
+	
+	/**
+	 * Runs a download response through the filter, and writes its body as Jersey would
+	 */
+	private static ContainerResponse filterDownload(GzipContentEncodingFilter filter, Response download, CapturingWriter writer) throws IOException {
+		InBoundHeaders headers = new InBoundHeaders();
+		headers.putSingle(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		ContainerRequest request = request("GET", headers, new byte[0]);
+		ContainerResponse response = new ContainerResponse(NO_APPLICATION, request, writer);
+		response.setResponse(download);
+		response = filter.filter(request, response);
+		
+		OutputStream out = response.getContainerResponseWriter().writeStatusAndHeaders(-1, response);
+		((FileStreamingOutput) response.getEntity()).write(out);
+		out.close();
+		response.getContainerResponseWriter().finish();
+		return response;
+	}
+	
+	@Test
+	public void compressTextDownload() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<2000; i++){
+			text.append("line ").append(i).append('\n');
+		}
+		byte[] content = text.toString().getBytes("UTF-8");
+		File file = File.createTempFile("download", ".txt");
+		try {
+			FileUtils.writeByteArrayToFile(file, content);
+			GzipContentEncodingFilter filter = new GzipContentEncodingFilter();
+			
+			CapturingWriter writer = new CapturingWriter();
+			Response download = FileStreamingOutput.response(file, MediaType.TEXT_PLAIN_TYPE, null, null).build();
+			String etag = (String) download.getMetadata().getFirst("ETag");
+			ContainerResponse response = filterDownload(filter, download, writer);
+			Assert.assertEquals("gzip", response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+			Assert.assertNull(response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_LENGTH));
+			Assert.assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"", response.getHttpHeaders().getFirst(HttpHeaders.ETAG));
+			Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(writer.body.toByteArray()))));
+			
+			// a range is sent as the identity bytes it describes
+			writer = new CapturingWriter();
+			download = FileStreamingOutput.response(file, MediaType.TEXT_PLAIN_TYPE, "bytes=0-4999", null).build();
+			response = filterDownload(filter, download, writer);
+			Assert.assertEquals(206, response.getStatus());
+			Assert.assertNull(response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+			Assert.assertEquals(Long.valueOf(5000), response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_LENGTH));
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 0, 5000), writer.body.toByteArray());
+		}
+		finally {
+			file.delete();
+		}
+	}
+}